@@ -0,0 +1,193 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiting of file transfer data.
+ *
+ * One bucket is shared by all transfers as a global ceiling and each file can
+ * have a bucket of its own. Writers reserve tokens before every chunk and wait
+ * for as long as the slower bucket is in debt, either on their own thread or,
+ * for writes from JS, by resuming on a writer thread woken by the timer. Only
+ * file transfer data passes through here, so messages and streams keep their
+ * share of the link.
+ */
+class BandwidthShaper {
+	private static String TAG = "BandwidthShaper";
+
+	// Smallest burst, so that limits far below the chunk size still make progress.
+	private static final long MIN_BURST_BYTES = 16 * 1024;
+
+	private static class TokenBucket {
+		private long mRate = 0;
+		private double mBurst = 0;
+		private double mTokens = 0;
+		private long mLastNanos = System.nanoTime();
+
+		/**
+		 * Set bytes per second, 0 for no limit. Debt from the previous rate is
+		 * forgiven so the new rate applies right away.
+		 */
+		synchronized void setRate(long rate) {
+			refill();
+			mRate = Math.max(rate, 0);
+			mBurst = Math.max(mRate / 10, MIN_BURST_BYTES);
+			mTokens = Math.min(Math.max(mTokens, 0), mBurst);
+		}
+
+		synchronized long getRate() {
+			return mRate;
+		}
+
+		/**
+		 * Take bytes out of the bucket and return how long to wait before
+		 * sending them, in nanoseconds.
+		 */
+		synchronized long reserve(long bytes) {
+			if (mRate == 0) {
+				return 0;
+			}
+			refill();
+			mTokens -= bytes;
+			return (mTokens >= 0) ? 0 : (long) (-mTokens * 1e9 / mRate);
+		}
+
+		/**
+		 * Give back bytes reserved for data that was not sent.
+		 */
+		synchronized void refund(long bytes) {
+			if (mRate == 0) {
+				return;
+			}
+			refill();
+			mTokens = Math.min(mTokens + bytes, mBurst);
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			if (mRate > 0) {
+				mTokens = Math.min(mTokens + (now - mLastNanos) * mRate / 1e9, mBurst);
+			}
+			mLastNanos = now;
+		}
+	}
+
+	private static final TokenBucket sGlobal = new TokenBucket();
+	// Wakes writes from JS once their wait is over, off the plugin dispatcher.
+	private static final ScheduledExecutorService sTimer =
+			Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(TAG));
+	// Runs the woken writes, so a blocked transfer never holds up the timer.
+	private static final ExecutorService sWriters = Executors.newCachedThreadPool(new DaemonThreadFactory(TAG));
+
+	private final Map<String, TokenBucket> mFiles = new ConcurrentHashMap<>();
+	private final AtomicLong mThrottledNanos = new AtomicLong(0);
+
+	/**
+	 * Limit all file transfers together to bytes per second, 0 for no limit.
+	 */
+	static void setGlobalRate(long rate) {
+		sGlobal.setRate(rate);
+	}
+
+	/**
+	 * Limit one file to bytes per second, 0 for no limit.
+	 */
+	void setFileRate(String fileId, long rate) {
+		if (rate <= 0) {
+			mFiles.remove(fileId);
+			return;
+		}
+		TokenBucket bucket = mFiles.get(fileId);
+		if (bucket == null) {
+			bucket = new TokenBucket();
+			TokenBucket existing = mFiles.putIfAbsent(fileId, bucket);
+			if (existing != null) {
+				bucket = existing;
+			}
+		}
+		bucket.setRate(rate);
+	}
+
+	void clear() {
+		mFiles.clear();
+	}
+
+	/**
+	 * Reserve bytes of fileId against both limits and return the nanoseconds
+	 * to wait before writing them.
+	 */
+	long reserve(String fileId, int bytes) {
+		long wait = sGlobal.reserve(bytes);
+		TokenBucket bucket = mFiles.get(fileId);
+		if (bucket != null) {
+			wait = Math.max(wait, bucket.reserve(bytes));
+		}
+		if (wait > 0) {
+			mThrottledNanos.addAndGet(wait);
+		}
+		return wait;
+	}
+
+	/**
+	 * Give back bytes of fileId reserved for a write that was given up.
+	 */
+	void refund(String fileId, int bytes) {
+		sGlobal.refund(bytes);
+		TokenBucket bucket = mFiles.get(fileId);
+		if (bucket != null) {
+			bucket.refund(bytes);
+		}
+	}
+
+	/**
+	 * Run task on a writer thread after the nanoseconds returned by reserve.
+	 */
+	static void resumeAfter(long nanos, Runnable task) {
+		sTimer.schedule(() -> sWriters.execute(task), nanos, TimeUnit.NANOSECONDS);
+	}
+
+	JSONObject getStatsJson() throws JSONException {
+		JSONObject files = new JSONObject();
+		for (Map.Entry<String, TokenBucket> entry : mFiles.entrySet()) {
+			files.put(entry.getKey(), entry.getValue().getRate());
+		}
+
+		JSONObject r = new JSONObject();
+		r.put("globalRate", sGlobal.getRate());
+		r.put("fileRates", files);
+		r.put("throttledMs", mThrottledNanos.get() / 1000000);
+		return r;
+	}
+}
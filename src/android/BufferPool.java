@@ -0,0 +1,254 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of scratch buffers for frame payloads.
+ *
+ * Buffers come in power-of-two classes from 256 bytes to 1 MB and are handed
+ * out at the class size, so callers must track the used length themselves.
+ * Each class keeps at most about 1 MB of idle buffers; larger requests are
+ * plain allocations and are never pooled.
+ *
+ * With leak detection on, every acquired buffer remembers where it was taken
+ * and a buffer that is garbage collected without being released is logged.
+ */
+class BufferPool {
+	private static String TAG = "BufferPool";
+
+	private static final int MIN_CLASS_SHIFT = 8;
+	private static final int MAX_CLASS_SHIFT = 20;
+	private static final int MAX_IDLE_BYTES_PER_CLASS = 1024 * 1024;
+
+	private static final BufferPool sShared = new BufferPool();
+
+	private static class SizeClass {
+		final int size;
+		final int maxIdle;
+		final ConcurrentLinkedQueue<byte[]> idle = new ConcurrentLinkedQueue<>();
+		final AtomicInteger idleCount = new AtomicInteger(0);
+		final AtomicLong hits = new AtomicLong(0);
+		final AtomicLong misses = new AtomicLong(0);
+		final AtomicLong drops = new AtomicLong(0);
+
+		SizeClass(int size) {
+			this.size = size;
+			this.maxIdle = Math.max(MAX_IDLE_BYTES_PER_CLASS / size, 2);
+		}
+	}
+
+	private static class LeakRef extends WeakReference<byte[]> {
+		final int hash;
+		final Throwable origin;
+		LeakRef next;
+
+		LeakRef(byte[] buffer, ReferenceQueue<byte[]> queue) {
+			super(buffer, queue);
+			this.hash = System.identityHashCode(buffer);
+			this.origin = new Throwable("Buffer of " + buffer.length + " bytes acquired here");
+		}
+	}
+
+	private final SizeClass[] mClasses = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+	private final AtomicLong mOversize = new AtomicLong(0);
+	private final AtomicLong mOutstanding = new AtomicLong(0);
+
+	private volatile boolean mLeakDetection = false;
+	private final ReferenceQueue<byte[]> mLeakQueue = new ReferenceQueue<>();
+	private final Map<Integer, LeakRef> mTracked = new HashMap<>();
+	private long mLeaks = 0;
+
+	private BufferPool() {
+		for (int i = 0; i < mClasses.length; i++) {
+			mClasses[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+		}
+	}
+
+	static BufferPool shared() {
+		return sShared;
+	}
+
+	/**
+	 * Turn leak tracking on or off, meant for debuggable builds only since it
+	 * records a stack trace for every acquired buffer.
+	 */
+	void setLeakDetection(boolean enabled) {
+		mLeakDetection = enabled;
+	}
+
+	/**
+	 * Get a buffer of at least minSize bytes.
+	 */
+	byte[] acquire(int minSize) {
+		SizeClass sizeClass = getSizeClass(minSize);
+		if (sizeClass == null) {
+			mOversize.incrementAndGet();
+			return new byte[minSize];
+		}
+
+		byte[] buffer = sizeClass.idle.poll();
+		if (buffer != null) {
+			sizeClass.idleCount.decrementAndGet();
+			sizeClass.hits.incrementAndGet();
+		} else {
+			sizeClass.misses.incrementAndGet();
+			buffer = new byte[sizeClass.size];
+		}
+		mOutstanding.incrementAndGet();
+
+		if (mLeakDetection) {
+			track(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Hand a buffer back. The caller must not touch it afterwards. Buffers that
+	 * did not come from the pool are ignored.
+	 */
+	void release(byte[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		SizeClass sizeClass = getSizeClass(buffer.length);
+		if (sizeClass == null || sizeClass.size != buffer.length) {
+			return;
+		}
+		if (mLeakDetection && !untrack(buffer)) {
+			Log.w(TAG, "Released a buffer that is not outstanding, double release?");
+			return;
+		}
+
+		mOutstanding.decrementAndGet();
+		if (sizeClass.idleCount.incrementAndGet() <= sizeClass.maxIdle) {
+			sizeClass.idle.offer(buffer);
+		} else {
+			sizeClass.idleCount.decrementAndGet();
+			sizeClass.drops.incrementAndGet();
+		}
+	}
+
+	private SizeClass getSizeClass(int size) {
+		if (size > (1 << MAX_CLASS_SHIFT)) {
+			return null;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return mClasses[Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT];
+	}
+
+	private void track(byte[] buffer) {
+		LeakRef ref = new LeakRef(buffer, mLeakQueue);
+		synchronized (mTracked) {
+			reportLeaks();
+			ref.next = mTracked.get(ref.hash);
+			mTracked.put(ref.hash, ref);
+		}
+	}
+
+	private boolean untrack(byte[] buffer) {
+		int hash = System.identityHashCode(buffer);
+		synchronized (mTracked) {
+			LeakRef prev = null;
+			for (LeakRef ref = mTracked.get(hash); ref != null; prev = ref, ref = ref.next) {
+				if (ref.get() == buffer) {
+					unlink(hash, prev, ref);
+					ref.clear();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void unlink(int hash, LeakRef prev, LeakRef ref) {
+		if (prev != null) {
+			prev.next = ref.next;
+		} else if (ref.next != null) {
+			mTracked.put(hash, ref.next);
+		} else {
+			mTracked.remove(hash);
+		}
+	}
+
+	// Called with mTracked held. Anything the GC collected while still tracked
+	// was never released.
+	private void reportLeaks() {
+		LeakRef leaked;
+		while ((leaked = (LeakRef) mLeakQueue.poll()) != null) {
+			LeakRef prev = null;
+			for (LeakRef ref = mTracked.get(leaked.hash); ref != null; prev = ref, ref = ref.next) {
+				if (ref == leaked) {
+					unlink(leaked.hash, prev, ref);
+					mOutstanding.decrementAndGet();
+					mLeaks++;
+					Log.e(TAG, "Pooled buffer was never released", leaked.origin);
+					break;
+				}
+			}
+		}
+	}
+
+	JSONObject getStatsJson() throws JSONException {
+		JSONArray classes = new JSONArray();
+		long hits = 0;
+		long misses = 0;
+		for (SizeClass sizeClass : mClasses) {
+			JSONObject c = new JSONObject();
+			c.put("size", sizeClass.size);
+			c.put("idle", sizeClass.idleCount.get());
+			c.put("hits", sizeClass.hits.get());
+			c.put("misses", sizeClass.misses.get());
+			c.put("drops", sizeClass.drops.get());
+			classes.put(c);
+			hits += sizeClass.hits.get();
+			misses += sizeClass.misses.get();
+		}
+
+		JSONObject r = new JSONObject();
+		r.put("hits", hits);
+		r.put("misses", misses);
+		r.put("oversize", mOversize.get());
+		r.put("outstanding", mOutstanding.get());
+		r.put("leakDetection", mLeakDetection);
+		synchronized (mTracked) {
+			reportLeaks();
+			r.put("leaks", mLeaks);
+		}
+		r.put("classes", classes);
+		return r;
+	}
+}
@@ -22,7 +22,9 @@
 
   package org.elastos.trinity.plugins.carrier;
 
+  import android.content.pm.ApplicationInfo;
   import android.util.Base64;
+  import android.util.Log;
   import org.apache.cordova.CallbackContext;
   import org.apache.cordova.PluginResult;
   import org.elastos.carrier.filetransfer.FileTransfer;
@@ -33,12 +35,19 @@
   import org.json.JSONArray;
   import org.json.JSONException;
   import org.json.JSONObject;
+  import java.io.File;
+  import java.io.IOException;
   import java.nio.charset.Charset;
+  import java.nio.charset.StandardCharsets;
+  import java.util.Arrays;
   import java.util.List;
   import java.util.Map;
-  import java.util.HashMap;
+  import java.util.HashSet;
   import java.util.Objects;
-  import java.util.UUID;
+  import java.util.Set;
+  import java.util.concurrent.ConcurrentHashMap;
+  import java.util.concurrent.CountDownLatch;
+  import java.util.concurrent.Executors;
   import org.elastos.carrier.*;
   import org.elastos.carrier.exceptions.CarrierException;
 
@@ -60,25 +69,83 @@
       private static final String SUCCESS = "Success!";
       private static final String INVALID_ID = "Id invalid!";
 
+      // Actions that never block: they only touch plugin state or static helpers, so they
+      // run on the calling thread. All other actions are dispatched to the thread pool.
+      private static final Set<String> SYNC_ACTIONS = new HashSet<>(Arrays.asList(
+              "test",
+              "setListener",
+              "getVersion",
+              "getIdFromAddress",
+              "isValidAddress",
+              "isValidId",
+              "generateFileTransFileId",
+              "ackChannelData",
+              "getStreamStats",
+              "getDispatcherStats",
+              "getFileTransStats",
+              "getBufferPoolStats",
+              "setFileTransIdleTimeout",
+              "setFileTransGlobalRateLimit",
+              "getFileTransRegistryStats",
+              "sendGroupMessage",
+              "setGroupMessageQueue",
+              "getGroupMessageQueueStats"
+      ));
+
+      // Actions whose first argument is not a carrier id, by the table the id belongs to.
+      private static final Set<String> SESSION_ACTIONS = new HashSet<>(Arrays.asList(
+              "sessionClose", "getPeer", "sessionRequest", "sessionReplyRequest", "sessionStart",
+              "addStream", "removeStream", "addService", "removeService"
+      ));
+      private static final Set<String> STREAM_ACTIONS = new HashSet<>(Arrays.asList(
+              "getTransportInfo", "streamWrite", "openChannel", "closeChannel", "writeChannel",
+              "writeChannelBatch", "pendChannel", "resumeChannel", "ackChannelData", "getStreamStats",
+              "openPortForwarding", "closePortForwarding"
+      ));
+      private static final Set<String> GROUP_ACTIONS = new HashSet<>(Arrays.asList(
+              "inviteGroup", "leaveGroup", "sendGroupMessage", "setGroupCompression", "setGroupMessageQueue",
+              "getGroupMessageQueueStats", "getGroupTitle", "setGroupTitle", "getGroupPeers", "getGroupPeer"
+      ));
+
+      // Actions that can block for long in the SDK, kept away from the control dispatcher.
+      private static final Set<String> BLOCKING_ACTIONS = new HashSet<>(Arrays.asList(
+              "createObject",
+              "streamWrite",
+              "writeChannel",
+              "writeChannelBatch",
+              "writeFileTransData"
+      ));
+
+      // Stream actions that must not overtake writes of the stream queued before them.
+      private static final Set<String> AFTER_WRITES_ACTIONS = new HashSet<>(Arrays.asList(
+              "closeChannel", "pendChannel", "resumeChannel", "removeStream"
+      ));
+
       private Map<Integer, PluginCarrierHandler> mCarrierMap;
-      private HashMap<Integer, Session> mSessionMap;
-      private HashMap<Integer, PluginStreamHandler> mStreamMap;
-      private HashMap<String, PluginGroupHandler> mGroupHandlerMap;
-      private HashMap<Integer, PluginFileTransferHandler> mFileTransferHandlerMap;
-
-      private CallbackContext mCarrierCallbackContext = null;
-      private CallbackContext mSessionCallbackContext = null;
-      private CallbackContext mStreamCallbackContext = null;
-      private CallbackContext mFIRCallbackContext = null;
-      private CallbackContext mGroupCallbackContext = null;
-      private CallbackContext mFileTransferCallbackContext = null;
+      private final HandleTable<Session> mSessionTable = new HandleTable<>();
+      private final HandleTable<PluginStreamHandler> mStreamTable = new HandleTable<>();
+      private final HandleTable<PluginGroupHandler> mGroupTable = new HandleTable<>();
+      private final FileTransferRegistry mFileTransferRegistry = new FileTransferRegistry();
+
+      private volatile CallbackContext mCarrierCallbackContext = null;
+      private volatile CallbackContext mSessionCallbackContext = null;
+      private volatile CallbackContext mStreamCallbackContext = null;
+      private volatile CallbackContext mFIRCallbackContext = null;
+      private volatile CallbackContext mGroupCallbackContext = null;
+      private volatile CallbackContext mFileTransferCallbackContext = null;
+
+      private StripedExecutor mDispatcher = null;
+      private StripedExecutor mBlockingDispatcher = null;
 
       public CarrierPlugin() {
-          mCarrierMap = new HashMap();
-          mSessionMap = new HashMap();
-          mStreamMap = new HashMap();
-          mGroupHandlerMap = new HashMap<>();
-          mFileTransferHandlerMap = new HashMap<>();
+          mCarrierMap = new ConcurrentHashMap<>();
+      }
+
+      @Override
+      protected void pluginInitialize() {
+          // Tracking every pooled buffer is too costly for release builds.
+          int flags = cordova.getActivity().getApplicationInfo().flags;
+          BufferPool.shared().setLeakDetection((flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
       }
 
       /**
@@ -93,11 +160,104 @@
               }
           }
           clearGroupHandlerMap();
+          mFileTransferRegistry.clear();
           super.onDestroy();
       }
 
       @Override
       public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+          if (SYNC_ACTIONS.contains(action)) {
+              return dispatch(action, args, callbackContext);
+          }
+
+          // Everything else may block in the Carrier SDK, keep it off the WebView thread.
+          // Actions on the same object stay in order, different objects run in parallel.
+          StripedExecutor dispatcher = BLOCKING_ACTIONS.contains(action) ? getBlockingDispatcher() : getDispatcher();
+          CountDownLatch writes = getWritesBarrier(action, args);
+          dispatcher.execute(getTargetKey(action, args), () -> {
+              try {
+                  if (writes != null) {
+                      writes.await();
+                  }
+                  if (!dispatch(action, args, callbackContext)) {
+                      callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.INVALID_ACTION));
+                  }
+              } catch (JSONException e) {
+                  callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION, e.getMessage()));
+              } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, action + " interrupted"));
+              } catch (RuntimeException e) {
+                  // Complete the call anyway, or the JS side waits forever.
+                  Log.e(TAG, action + " failed", e);
+                  callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, action + " error: " + e));
+              }
+          });
+          return true;
+      }
+
+      private synchronized StripedExecutor getDispatcher() {
+          if (mDispatcher == null) {
+              int stripes = Runtime.getRuntime().availableProcessors() * 4;
+              mDispatcher = new StripedExecutor(cordova.getThreadPool(), stripes);
+          }
+          return mDispatcher;
+      }
+
+      /**
+       * Data writes get their own threads, so a write stuck on a congested peer
+       * never holds up control actions that happen to share its stripe.
+       */
+      private synchronized StripedExecutor getBlockingDispatcher() {
+          if (mBlockingDispatcher == null) {
+              int stripes = Runtime.getRuntime().availableProcessors() * 2;
+              mBlockingDispatcher = new StripedExecutor(
+                      Executors.newCachedThreadPool(new DaemonThreadFactory(TAG)), stripes);
+          }
+          return mBlockingDispatcher;
+      }
+
+      /**
+       * Writes run on the blocking dispatcher, so a control action of the same stream
+       * could overtake them. Returns a latch that opens once the writes of the stream
+       * queued so far are done, or null if the action does not need to wait.
+       */
+      private CountDownLatch getWritesBarrier(String action, JSONArray args) {
+          if (!AFTER_WRITES_ACTIONS.contains(action)) {
+              return null;
+          }
+          // removeStream names the session first and the stream second.
+          Object streamId = action.equals("removeStream") ? args.opt(1) : args.opt(0);
+          CountDownLatch writes = new CountDownLatch(1);
+          getBlockingDispatcher().execute("stream:" + streamId, writes::countDown);
+          return writes;
+      }
+
+      /**
+       * The object an action operates on. Carriers, sessions, streams, file transfers
+       * and groups number their handles independently, so the table is part of the key.
+       * The id is the first argument of every action but leaveGroup.
+       */
+      private Object getTargetKey(String action, JSONArray args) {
+          if (action.equals("leaveGroup")) {
+              return "group:" + args.opt(1);
+          }
+          String family;
+          if (SESSION_ACTIONS.contains(action)) {
+              family = "session:";
+          } else if (STREAM_ACTIONS.contains(action)) {
+              family = "stream:";
+          } else if (GROUP_ACTIONS.contains(action)) {
+              family = "group:";
+          } else if (action.contains("FileTrans") && !action.equals("newFileTransfer")) {
+              family = "fileTransfer:";
+          } else {
+              family = "carrier:";
+          }
+          return family + args.opt(0);
+      }
+
+      private boolean dispatch(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
           try {
               switch (action) {
                   case "test":
@@ -139,6 +299,24 @@
                   case "sendFriendMessage":
                       this.sendFriendMessage(args, callbackContext);
                       break;
+                  case "queueFriendMessage":
+                      this.queueFriendMessage(args, callbackContext);
+                      break;
+                  case "getFriendMessageOutboxStats":
+                      this.getFriendMessageOutboxStats(args, callbackContext);
+                      break;
+                  case "getFriendMessageStats":
+                      this.getFriendMessageStats(args, callbackContext);
+                      break;
+                  case "queryFriendMessages":
+                      this.queryFriendMessages(args, callbackContext);
+                      break;
+                  case "setFriendMessageDedup":
+                      this.setFriendMessageDedup(args, callbackContext);
+                      break;
+                  case "setFriendMessageCompression":
+                      this.setFriendMessageCompression(args, callbackContext);
+                      break;
                   case "getSelfInfo":
                       this.getSelfInfo(args, callbackContext);
                       break;
@@ -183,6 +361,7 @@
                       break;
                   case "sessionStart":
                       this.sessionStart(args, callbackContext);
+                      break;
                   case "addStream":
                       this.addStream(args, callbackContext);
                       break;
@@ -210,18 +389,33 @@
                   case "writeChannel":
                       this.writeChannel(args, callbackContext);
                       break;
+                  case "writeChannelBatch":
+                      this.writeChannelBatch(args, callbackContext);
+                      break;
                   case "pendChannel":
                       this.pendChannel(args, callbackContext);
                       break;
                   case "resumeChannel":
                       this.resumeChannel(args, callbackContext);
                       break;
+                  case "ackChannelData":
+                      this.ackChannelData(args, callbackContext);
+                      break;
+                  case "getStreamStats":
+                      this.getStreamStats(args, callbackContext);
+                      break;
                   case "openPortForwarding":
                       this.openPortForwarding(args, callbackContext);
                       break;
                   case "closePortForwarding":
                       this.closePortForwarding(args, callbackContext);
                       break;
+                  case "getDispatcherStats":
+                      this.getDispatcherStats(callbackContext);
+                      break;
+                  case "getBufferPoolStats":
+                      this.getBufferPoolStats(callbackContext);
+                      break;
                   //static
                   case "getVersion":
                       this.getVersion(callbackContext);
@@ -250,6 +444,15 @@
                   case "sendGroupMessage":
                       this.sendGroupMessage(args, callbackContext);
                       break;
+                  case "setGroupCompression":
+                      this.setGroupCompression(args, callbackContext);
+                      break;
+                  case "setGroupMessageQueue":
+                      this.setGroupMessageQueue(args, callbackContext);
+                      break;
+                  case "getGroupMessageQueueStats":
+                      this.getGroupMessageQueueStats(args, callbackContext);
+                      break;
                   case "getGroupTitle":
                       this.getGroupTitle(args, callbackContext);
                       break;
@@ -304,6 +507,30 @@
                   case "newFileTransfer":
                       this.newFileTransfer(args, callbackContext);
                       break;
+                  case "scheduleFileTransPull":
+                      this.scheduleFileTransPull(args, callbackContext);
+                      break;
+                  case "setFileTransConcurrency":
+                      this.setFileTransConcurrency(args, callbackContext);
+                      break;
+                  case "setFileTransProgressMode":
+                      this.setFileTransProgressMode(args, callbackContext);
+                      break;
+                  case "getFileTransStats":
+                      this.getFileTransStats(args, callbackContext);
+                      break;
+                  case "setFileTransIdleTimeout":
+                      this.setFileTransIdleTimeout(args, callbackContext);
+                      break;
+                  case "setFileTransRateLimit":
+                      this.setFileTransRateLimit(args, callbackContext);
+                      break;
+                  case "setFileTransGlobalRateLimit":
+                      this.setFileTransGlobalRateLimit(args, callbackContext);
+                      break;
+                  case "getFileTransRegistryStats":
+                      this.getFileTransRegistryStats(args, callbackContext);
+                      break;
                   default:
                       return false;
               }
@@ -320,6 +547,24 @@
           byte[] rawData = Base64.decode(data, Base64.DEFAULT);
       }
 
+      /**
+       * Binary payloads arrive either as an ArrayBuffer (marshalled by the bridge) or
+       * as a Base64 string from older callers; both decode to the same raw bytes.
+       */
+      private byte[] getBinaryArg(JSONArray args, int index) throws JSONException {
+          return PooledBase64.decode(args.getString(index));
+      }
+
+      private void getBufferPoolStats(CallbackContext callbackContext) throws JSONException {
+          callbackContext.success(BufferPool.shared().getStatsJson());
+      }
+
+      private void getDispatcherStats(CallbackContext callbackContext) throws JSONException {
+          JSONObject r = getDispatcher().getStatsJson();
+          r.put("blocking", getBlockingDispatcher().getStatsJson());
+          callbackContext.success(r);
+      }
+
       private void getVersion(CallbackContext callbackContext) {
           String version = Carrier.getVersion();
           callbackContext.success(version);
@@ -651,15 +896,115 @@
           String message = args.getString(2);
           PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
           if (carrierHandler != null) {
-              boolean isOffline = carrierHandler.mCarrier.sendFriendMessage(to, message);
+              byte[] data = message.getBytes(StandardCharsets.UTF_8);
+              if (data.length > MessageFragmenter.MAX_MESSAGE_SIZE) {
+                  callbackContext.error("Message too long!");
+                  return;
+              }
+              boolean isOffline = MessageFragmenter.send(carrierHandler.mCarrier, carrierHandler.getPeerCaps(), to,
+                      carrierHandler.getCompressor().encodeFriendMessage(to, data));
+              long storeId = carrierHandler.storeMessage(to, true, isOffline, data);
               JSONObject r = new JSONObject();
               r.put("isOffline", isOffline);
+              if (storeId >= 0) {
+                  r.put("storeId", storeId);
+              }
               callbackContext.success(r);
           } else {
               callbackContext.error(INVALID_ID);
           }
       }
 
+      private void queueFriendMessage(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          Integer id = args.getInt(0);
+          String to = args.getString(1);
+          String message = args.getString(2);
+          PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
+          if (carrierHandler != null) {
+              if (message.getBytes(StandardCharsets.UTF_8).length > MessageFragmenter.MAX_MESSAGE_SIZE) {
+                  callbackContext.error("Message too long!");
+                  return;
+              }
+              try {
+                  long messageId = carrierHandler.getOutbox().enqueue(to, message);
+                  JSONObject r = new JSONObject();
+                  r.put("messageId", messageId);
+                  callbackContext.success(r);
+              } catch (IOException e) {
+                  callbackContext.error(e.getMessage());
+              }
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void getFriendMessageOutboxStats(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          Integer id = args.getInt(0);
+          PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
+          if (carrierHandler != null) {
+              callbackContext.success(carrierHandler.getOutbox().getStatsJson());
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void getFriendMessageStats(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          Integer id = args.getInt(0);
+          PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
+          if (carrierHandler != null) {
+              callbackContext.success(carrierHandler.getMessageStatsJson());
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void queryFriendMessages(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          Integer id = args.getInt(0);
+          String peer = args.getString(1);
+          JSONObject options = args.optJSONObject(2);
+          if (options == null) {
+              options = new JSONObject();
+          }
+          PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
+          MessageStore store = (carrierHandler != null) ? carrierHandler.getMessageStore() : null;
+          if (store != null) {
+              try {
+                  callbackContext.success(store.query(peer, options.optLong("before", -1),
+                          options.optLong("after", -1), options.optInt("limit", 50)));
+              } catch (IOException e) {
+                  callbackContext.error(e.getMessage());
+              }
+          } else if (carrierHandler != null) {
+              callbackContext.error("Message store not enabled!");
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setFriendMessageDedup(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          Integer id = args.getInt(0);
+          JSONObject config = args.optJSONObject(1);
+          PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
+          if (carrierHandler != null) {
+              carrierHandler.setDedup(config);
+              callbackContext.success(SUCCESS);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setFriendMessageCompression(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
+          Integer id = args.getInt(0);
+          boolean enabled = args.getBoolean(1);
+          PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
+          if (carrierHandler != null) {
+              carrierHandler.setCompression(enabled);
+              callbackContext.success(SUCCESS);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
       private void inviteFriend(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
           Integer id = args.getInt(0);
           String to = args.getString(1);
@@ -718,8 +1063,7 @@
           if (carrierHandler != null) {
               Session session = carrierHandler.mSessionManager.newSession(to);
               if (session != null) {
-                  Integer code = System.identityHashCode(session);
-                  mSessionMap.put(code, session);
+                  int code = mSessionTable.add(session);
                   JSONObject r = new JSONObject();
                   r.put("id", code);
                   r.put("peer", session.getPeer());
@@ -733,8 +1077,8 @@
       }
 
       private void sessionClose(JSONArray args, CallbackContext callbackContext) throws JSONException {
-          Integer id = args.getInt(0);
-          Session session = mSessionMap.get(id);
+          int id = args.getInt(0);
+          Session session = mSessionTable.remove(id);
           if (session != null) {
               session.close();
               callbackContext.success();
@@ -744,8 +1088,8 @@
       }
 
       private void getPeer(JSONArray args, CallbackContext callbackContext) throws JSONException {
-          Integer id = args.getInt(0);
-          Session session = mSessionMap.get(id);
+          int id = args.getInt(0);
+          Session session = mSessionTable.get(id);
           if (session != null) {
               String peer = session.getPeer();
               JSONObject r = new JSONObject();
@@ -757,9 +1101,9 @@
       }
 
       private void sessionRequest(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int handlerId = args.getInt(1);
-          Session session = mSessionMap.get(id);
+          Session session = mSessionTable.get(id);
           if (session != null) {
               SRCHandler handler = new SRCHandler(handlerId, mSessionCallbackContext);
               session.request(handler);
@@ -770,13 +1114,13 @@
       }
 
       private void sessionReplyRequest(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int status = args.getInt(1);
           String reason = null;
           if (status != 0) {
               reason = args.getString(2);
           }
-          Session session = mSessionMap.get(id);
+          Session session = mSessionTable.get(id);
           if (session != null) {
               session.replyRequest(status, reason);
               JSONObject r = new JSONObject();
@@ -789,9 +1133,9 @@
       }
 
       private void sessionStart(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           String sdp = args.getString(1);
-          Session session = mSessionMap.get(id);
+          Session session = mSessionTable.get(id);
           if (session != null) {
               session.start(sdp);
               JSONObject r = new JSONObject();
@@ -803,15 +1147,16 @@
       }
 
       private void addStream(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int type = args.getInt(1);
           int options = args.getInt(2);
+          JSONObject config = args.optJSONObject(3);
 
-          Session session = mSessionMap.get(id);
+          Session session = mSessionTable.get(id);
           if (session != null) {
-              PluginStreamHandler streamHandler = PluginStreamHandler.createInstance(session, type, options, mStreamCallbackContext);
+              PluginStreamHandler streamHandler = PluginStreamHandler.createInstance(session, type, options, config,
+                      mStreamTable, mStreamCallbackContext);
               if (streamHandler != null) {
-                  mStreamMap.put(streamHandler.mCode, streamHandler);
                   JSONObject r = new JSONObject();
                   r.put("objId", streamHandler.mCode);
                   r.put("id", streamHandler.mStream.getStreamId());
@@ -827,13 +1172,15 @@
       }
 
       private void removeStream(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
-          Integer streamId = args.getInt(1);
+          int id = args.getInt(0);
+          int streamId = args.getInt(1);
 
-          Session session = mSessionMap.get(id);
-          PluginStreamHandler streamHandler = mStreamMap.get(streamId);
+          Session session = mSessionTable.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(streamId);
           if (session != null && streamHandler != null) {
+              streamHandler.close();
               session.removeStream(streamHandler.mStream);
+              mStreamTable.remove(streamId);
               callbackContext.success();
           } else {
               callbackContext.error(INVALID_ID);
@@ -841,13 +1188,13 @@
       }
 
       private void addService(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           String service = args.getString(1);
           int protocol = args.getInt(2);
           String host = args.getString(3);
           String port = args.getString(4);
 
-          Session session = mSessionMap.get(id);
+          Session session = mSessionTable.get(id);
           if (session != null) {
               session.addService(service, PortForwardingProtocol.valueOf(protocol), host, port);
               JSONObject r = new JSONObject();
@@ -862,10 +1209,10 @@
       }
 
       private void removeService(JSONArray args, CallbackContext callbackContext) throws JSONException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           String service = args.getString(1);
 
-          Session session = mSessionMap.get(id);
+          Session session = mSessionTable.get(id);
           if (session != null) {
               session.removeService(service);
               JSONObject r = new JSONObject();
@@ -877,9 +1224,9 @@
       }
 
       private void getTransportInfo(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
           if (streamHandler != null) {
               JSONObject r = streamHandler.getTransportInfoJson();
               callbackContext.success(r);
@@ -889,12 +1236,13 @@
       }
 
       private void streamWrite(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
-          String data = args.getString(1);
-          byte[] rawData = Base64.decode(data, Base64.DEFAULT);
+          int id = args.getInt(0);
+          byte[] rawData = getBinaryArg(args, 1);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
-          if (streamHandler != null) {
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
+          if (streamHandler != null && streamHandler.getWriteQueue() != null) {
+              streamHandler.getWriteQueue().write(-1, rawData, callbackContext);
+          } else if (streamHandler != null) {
               int written = streamHandler.mStream.writeData(rawData);
               JSONObject r = new JSONObject();
               r.put("written", written);
@@ -905,10 +1253,10 @@
       }
 
       private void openChannel(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           String cookie = args.getString(1);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
           if (streamHandler != null) {
               int channel = streamHandler.mStream.openChannel(cookie);
               JSONObject r = new JSONObject();
@@ -920,10 +1268,10 @@
       }
 
       private void closeChannel(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int channel = args.getInt(1);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
           if (streamHandler != null) {
               streamHandler.mStream.closeChannel(channel);
               JSONObject r = new JSONObject();
@@ -935,13 +1283,14 @@
       }
 
       private void writeChannel(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int channel = args.getInt(1);
-          String data = args.getString(2);
-          byte[] rawData = Base64.decode(data, Base64.DEFAULT);
+          byte[] rawData = getBinaryArg(args, 2);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
-          if (streamHandler != null) {
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
+          if (streamHandler != null && streamHandler.getWriteQueue() != null) {
+              streamHandler.getWriteQueue().write(channel, rawData, callbackContext);
+          } else if (streamHandler != null) {
               int written = streamHandler.mStream.writeData(channel, rawData);
               JSONObject r = new JSONObject();
               r.put("channel", channel);
@@ -952,11 +1301,72 @@
           }
       }
 
+      /**
+       * Write several frames of one stream in order within a single bridge call. Frames are
+       * packed back to back in one binary argument and split by the given lengths. Writing
+       * stops at the first failing frame; the error is then an object with the error code, the
+       * index of that frame and the counts of the frames written before it.
+       */
+      private void writeChannelBatch(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int id = args.getInt(0);
+          JSONArray channels = args.getJSONArray(1);
+          JSONArray lengths = args.getJSONArray(2);
+          String encoded = args.getString(3);
+
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
+          if (streamHandler == null) {
+              callbackContext.error(INVALID_ID);
+              return;
+          }
+
+          // The whole payload is only scratch space, each frame gets its own exact copy.
+          BufferPool pool = BufferPool.shared();
+          byte[] rawData = pool.acquire(PooledBase64.maxDecodedLength(encoded));
+          try {
+              int size = PooledBase64.decode(encoded, rawData);
+              long total = 0;
+              boolean valid = channels.length() == lengths.length();
+              for (int i = 0; i < lengths.length() && valid; i++) {
+                  int length = lengths.getInt(i);
+                  valid = length >= 0;
+                  total += length;
+              }
+              if (!valid || total != size) {
+                  callbackContext.error("Invalid frame lengths!");
+                  return;
+              }
+
+              JSONArray written = new JSONArray();
+              int offset = 0;
+              for (int i = 0; i < channels.length(); i++) {
+                  int length = lengths.getInt(i);
+                  byte[] frame = Arrays.copyOfRange(rawData, offset, offset + length);
+                  offset += length;
+                  try {
+                      written.put(streamHandler.mStream.writeData(channels.getInt(i), frame));
+                  } catch (CarrierException e) {
+                      // Frames before this one were sent, say how far the batch got.
+                      JSONObject r = new JSONObject();
+                      r.put("code", e.getErrorCode());
+                      r.put("index", i);
+                      r.put("written", written);
+                      callbackContext.error(r);
+                      return;
+                  }
+              }
+              JSONObject r = new JSONObject();
+              r.put("written", written);
+              callbackContext.success(r);
+          } finally {
+              pool.release(rawData);
+          }
+      }
+
       private void pendChannel(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int channel = args.getInt(1);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
           if (streamHandler != null) {
               streamHandler.mStream.pendChannel(channel);
               JSONObject r = new JSONObject();
@@ -968,10 +1378,10 @@
       }
 
       private void resumeChannel(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int channel = args.getInt(1);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
           if (streamHandler != null) {
               streamHandler.mStream.resumeChannel(channel);
               JSONObject r = new JSONObject();
@@ -982,14 +1392,41 @@
           }
       }
 
+      private void ackChannelData(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int id = args.getInt(0);
+          JSONArray channels = args.getJSONArray(1);
+          JSONArray lengths = args.getJSONArray(2);
+
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
+          if (streamHandler != null) {
+              for (int i = 0; i < channels.length(); i++) {
+                  streamHandler.acknowledge(channels.getInt(i), lengths.getLong(i));
+              }
+              callbackContext.success();
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void getStreamStats(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int id = args.getInt(0);
+
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
+          if (streamHandler != null) {
+              callbackContext.success(streamHandler.getStatsJson());
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
       private void openPortForwarding(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           String service = args.getString(1);
           int protocol = args.getInt(2);
           String host = args.getString(3);
           String port = args.getString(4);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
           if (streamHandler != null) {
               int pfId = streamHandler.mStream.openPortForwarding(service, PortForwardingProtocol.valueOf(protocol), host, port);
               JSONObject r = new JSONObject();
@@ -1005,10 +1442,10 @@
       }
 
       private void closePortForwarding(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
-          Integer id = args.getInt(0);
+          int id = args.getInt(0);
           int pfId = args.getInt(1);
 
-          PluginStreamHandler streamHandler = mStreamMap.get(id);
+          PluginStreamHandler streamHandler = mStreamTable.get(id);
           if (streamHandler != null) {
               streamHandler.mStream.closePortForwarding(pfId);
               JSONObject r = new JSONObject();
@@ -1024,15 +1461,16 @@
           PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
 
           if (carrierHandler != null) {
-              String groupId = getGroupId();
-              PluginGroupHandler groupHandler = new PluginGroupHandler(mGroupCallbackContext);
-              Group group = carrierHandler.mCarrier.newGroup(groupHandler);
-              group.setTitle("Untitled");
-
-              groupHandler.setGroup(group);
-              groupHandler.setGroupId(groupId);
-
-              addGroupMap(groupId, groupHandler);
+              PluginGroupHandler groupHandler = new PluginGroupHandler(mGroupCallbackContext, carrierHandler.getCompressor());
+              String groupId = addGroupHandler(groupHandler);
+              try {
+                  Group group = carrierHandler.mCarrier.newGroup(groupHandler);
+                  group.setTitle("Untitled");
+                  groupHandler.setGroup(group);
+              } catch (CarrierException e) {
+                  deleteGroupHandlerFromMap(groupId);
+                  throw e;
+              }
 
               JSONObject jsonObject = new JSONObject();
               jsonObject.put("groupId", groupId);
@@ -1051,14 +1489,15 @@
           PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
           byte[] cookie = Base58.decode(cookieBase58);
           if (carrierHandler != null) {
-              String groupId = getGroupId();
-              PluginGroupHandler groupHandler = new PluginGroupHandler(mGroupCallbackContext);
-
-              Group group = carrierHandler.mCarrier.groupJoin(friendId, cookie, groupHandler);
-              groupHandler.setGroupId(groupId);
-              groupHandler.setGroup(group);
-
-              addGroupMap(groupId, groupHandler);
+              PluginGroupHandler groupHandler = new PluginGroupHandler(mGroupCallbackContext, carrierHandler.getCompressor());
+              String groupId = addGroupHandler(groupHandler);
+              try {
+                  Group group = carrierHandler.mCarrier.groupJoin(friendId, cookie, groupHandler);
+                  groupHandler.setGroup(group);
+              } catch (CarrierException e) {
+                  deleteGroupHandlerFromMap(groupId);
+                  throw e;
+              }
 
               JSONObject jsonObject = new JSONObject();
               jsonObject.put("groupId", groupId);
@@ -1075,7 +1514,7 @@
 
           Group group = null;
           try {
-              group = Objects.requireNonNull(mGroupHandlerMap.get(groupId)).mGroup;
+              group = Objects.requireNonNull(getGroupHandler(groupId)).mGroup;
           } catch (NullPointerException e) {
           }
           if (group != null) {
@@ -1093,7 +1532,7 @@
           PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
           Group group = null;
           try {
-              group = Objects.requireNonNull(mGroupHandlerMap.get(groupId)).mGroup;
+              group = Objects.requireNonNull(getGroupHandler(groupId)).mGroup;
           } catch (NullPointerException e) {
           }
           if (carrierHandler != null && group != null) {
@@ -1106,19 +1545,52 @@
           }
       }
 
-      private void sendGroupMessage(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
+      private void sendGroupMessage(JSONArray args, CallbackContext callbackContext) throws JSONException {
           String groupId = args.getString(0);
           String messageData = args.getString(1);
 
-          Group group = null;
-          try {
-              group = Objects.requireNonNull(mGroupHandlerMap.get(groupId)).mGroup;
-          } catch (NullPointerException e) {
-          }
+          PluginGroupHandler groupHandler = getGroupHandler(groupId);
           byte[] message = messageData.getBytes(Charset.forName("UTF-8"));
 
-          if (group != null) {
-              group.sendMessage(message);
+          if (groupHandler != null && groupHandler.mSendQueue != null) {
+              // Encoded and completed by the queue once the message went out.
+              groupHandler.mSendQueue.send(message, callbackContext);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setGroupMessageQueue(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          String groupId = args.getString(0);
+          JSONObject config = args.optJSONObject(1);
+
+          PluginGroupHandler groupHandler = getGroupHandler(groupId);
+          if (groupHandler != null && groupHandler.mSendQueue != null) {
+              groupHandler.mSendQueue.configure(config);
+              callbackContext.success(SUCCESS);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void getGroupMessageQueueStats(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          String groupId = args.getString(0);
+
+          PluginGroupHandler groupHandler = getGroupHandler(groupId);
+          if (groupHandler != null && groupHandler.mSendQueue != null) {
+              callbackContext.success(groupHandler.mSendQueue.getStatsJson());
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setGroupCompression(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          String groupId = args.getString(0);
+          boolean enabled = args.getBoolean(1);
+
+          PluginGroupHandler groupHandler = getGroupHandler(groupId);
+          if (groupHandler != null) {
+              groupHandler.setCompression(enabled);
               callbackContext.success(SUCCESS);
           } else {
               callbackContext.error(INVALID_ID);
@@ -1129,7 +1601,7 @@
           String groupId = args.getString(0);
           Group group = null;
           try {
-              group = Objects.requireNonNull(mGroupHandlerMap.get(groupId)).mGroup;
+              group = Objects.requireNonNull(getGroupHandler(groupId)).mGroup;
           } catch (NullPointerException e) {
           }
           if (group != null) {
@@ -1145,7 +1617,7 @@
 
           Group group = null;
           try {
-              group = Objects.requireNonNull(mGroupHandlerMap.get(groupId)).mGroup;
+              group = Objects.requireNonNull(getGroupHandler(groupId)).mGroup;
           } catch (NullPointerException e) {
           }
           if (group != null) {
@@ -1161,7 +1633,7 @@
 
           Group group = null;
           try {
-              group = Objects.requireNonNull(mGroupHandlerMap.get(groupId)).mGroup;
+              group = Objects.requireNonNull(getGroupHandler(groupId)).mGroup;
           } catch (NullPointerException e) {
           }
           if (group != null) {
@@ -1179,7 +1651,7 @@
 
           Group group = null;
           try {
-              group = Objects.requireNonNull(mGroupHandlerMap.get(groupId)).mGroup;
+              group = Objects.requireNonNull(getGroupHandler(groupId)).mGroup;
           } catch (NullPointerException e) {
           }
           if (group != null && peerId != null) {
@@ -1192,24 +1664,35 @@
       }
 
       private void clearGroupHandlerMap() {
-          mGroupHandlerMap.clear();
+          mGroupTable.clear((handle, groupHandler) -> groupHandler.close());
       }
 
       private void deleteGroupHandlerFromMap(String groupHandlerId) {
-          mGroupHandlerMap.remove(groupHandlerId);
-      }
-
-      private String getGroupId() {
-          //TODO tobe modify , If can get groupid
-          return randomUUID();
+          try {
+              PluginGroupHandler groupHandler = mGroupTable.remove(Integer.parseInt(groupHandlerId));
+              if (groupHandler != null) {
+                  groupHandler.close();
+              }
+          } catch (NumberFormatException e) {
+          }
       }
 
-      private String randomUUID() {
-          return UUID.randomUUID().toString().replace("-", "");
+      private PluginGroupHandler getGroupHandler(String groupId) {
+          try {
+              return mGroupTable.get(Integer.parseInt(groupId));
+          } catch (NumberFormatException e) {
+              return null;
+          }
       }
 
-      private void addGroupMap(String groupId, PluginGroupHandler groupHandler) {
-          mGroupHandlerMap.put(groupId, groupHandler);
+      /**
+       * Register the handler before the native group exists, so that callbacks
+       * fired while creating or joining already carry a valid groupId.
+       */
+      private String addGroupHandler(PluginGroupHandler groupHandler) {
+          String groupId = String.valueOf(mGroupTable.add(groupHandler));
+          groupHandler.setGroupId(groupId);
+          return groupId;
       }
 
       private JSONObject getGroupPeersInfoJson(Group group) throws JSONException, CarrierException {
@@ -1247,13 +1730,7 @@
       private void closeFileTrans(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
           int fileTransferId = args.getInt(0);
 
-          FileTransfer fileTransfer = null;
-          try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
-          } catch (NullPointerException e) {
-          }
-          if (fileTransfer != null) {
-              fileTransfer.close();
+          if (mFileTransferRegistry.close(fileTransferId)) {
               callbackContext.success(SUCCESS);
           } else {
               callbackContext.error(INVALID_ID);
@@ -1265,7 +1742,7 @@
           String filename = args.getString(1);
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(mFileTransferRegistry.get(fileTransferId)).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
@@ -1285,7 +1762,7 @@
 
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(mFileTransferRegistry.get(fileTransferId)).getmFileTransfer();
           } catch (NullPointerException e) {
           }
 
@@ -1305,7 +1782,7 @@
 
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(mFileTransferRegistry.get(fileTransferId)).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
@@ -1321,7 +1798,7 @@
 
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(mFileTransferRegistry.get(fileTransferId)).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
@@ -1336,13 +1813,28 @@
           int fileTransferId = args.getInt(0);
           JSONObject fileinfo = args.getJSONObject(1);
 
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(fileTransferHandler).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
-              fileTransfer.addFile(decodeFileTransferInfo(fileinfo));
+              FileTransferInfo info;
+              try {
+                  info = decodeFileTransferInfo(fileinfo);
+              } catch (IOException e) {
+                  callbackContext.error(e.getMessage());
+                  return;
+              }
+              if (fileinfo.has("path") && fileTransferHandler.isSending(info.getFileId())) {
+                  // Swapping the source would cancel the send under the peer.
+                  callbackContext.error("File is being sent!");
+                  return;
+              }
+              fileTransfer.addFile(info);
+              fileTransferHandler.onFileAdded(info.getFileId(), info.getSize());
+              applyFileOptions(fileTransferHandler, info, fileinfo);
               callbackContext.success(SUCCESS);
           } else {
               callbackContext.error(INVALID_ID);
@@ -1353,13 +1845,26 @@
           int fileTransferId = args.getInt(0);
           String fileId = args.getString(1);
           long offset = args.getLong(2);
+          JSONObject sink = args.optJSONObject(3);
 
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(fileTransferHandler).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
+              if (sink != null) {
+                  try {
+                      confineSinkPath(sink);
+                      offset = fileTransferHandler.addFileSink(fileId, offset, sink);
+                  } catch (IOException e) {
+                      callbackContext.error("Open sink error: " + e.getMessage());
+                      return;
+                  }
+              } else {
+                  fileTransferHandler.onPull(fileId, offset);
+              }
               fileTransfer.pullData(fileId,offset);
               callbackContext.success(SUCCESS);
           } else {
@@ -1372,14 +1877,31 @@
           String fileId = args.getString(1);
           String data = args.getString(2);
 
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(fileTransferHandler).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
-              fileTransfer.writeData(fileId,data.getBytes());
-              callbackContext.success(SUCCESS);
+              byte[] rawData = data.getBytes();
+              // Completes once the rate limits let every chunk through, without holding the dispatcher.
+              fileTransferHandler.writeData(fileTransfer, fileId, rawData, new PluginFileTransferHandler.DataWriteCallback() {
+                  @Override
+                  public void onDataWritten(int written) {
+                      if (written < rawData.length) {
+                          // The chunks after a short write were not sent, JS has to write them again.
+                          callbackContext.error(String.format("writeFileTransData wrote %d of %d bytes", written, rawData.length));
+                      } else {
+                          callbackContext.success(SUCCESS);
+                      }
+                  }
+
+                  @Override
+                  public void onDataWriteError(String reason) {
+                      callbackContext.error(reason);
+                  }
+              });
           } else {
               callbackContext.error(INVALID_ID);
           }
@@ -1389,13 +1911,15 @@
           int fileTransferId = args.getInt(0);
           String fileId = args.getString(1);
 
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(fileTransferHandler).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
               fileTransfer.sendFinish(fileId);
+              fileTransferHandler.onSendFinishCalled(fileId);
               callbackContext.success(SUCCESS);
           } else {
               callbackContext.error(INVALID_ID);
@@ -1408,12 +1932,14 @@
           int status = args.getInt(2);
           String reason = args.getString(3);
 
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(fileTransferHandler).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
+              fileTransferHandler.cancelFile(fileId);
               fileTransfer.cancelTransfer(fileId,status,reason);
               callbackContext.success(SUCCESS);
           } else {
@@ -1421,13 +1947,101 @@
           }
       }
 
+      private void scheduleFileTransPull(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int fileTransferId = args.getInt(0);
+          String fileId = args.getString(1);
+          JSONObject sink = args.getJSONObject(2);
+          int priority = args.optInt(3, 0);
+
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
+          if (fileTransferHandler != null && fileTransferHandler.getmFileTransfer() != null) {
+              try {
+                  confineSinkPath(sink);
+              } catch (IOException e) {
+                  callbackContext.error("Open sink error: " + e.getMessage());
+                  return;
+              }
+              fileTransferHandler.schedulePull(fileId, sink, priority);
+              callbackContext.success(SUCCESS);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setFileTransConcurrency(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int fileTransferId = args.getInt(0);
+          int concurrency = args.getInt(1);
+
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
+          if (fileTransferHandler != null) {
+              fileTransferHandler.setConcurrency(concurrency);
+              callbackContext.success(SUCCESS);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setFileTransProgressMode(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int fileTransferId = args.getInt(0);
+          double rate = args.getDouble(1);
+
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
+          if (fileTransferHandler != null) {
+              fileTransferHandler.setProgressMode(rate);
+              callbackContext.success(SUCCESS);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setFileTransRateLimit(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int fileTransferId = args.getInt(0);
+          String fileId = args.getString(1);
+          long rate = args.getLong(2);
+
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
+          if (fileTransferHandler != null) {
+              fileTransferHandler.setRateLimit(fileId, rate);
+              callbackContext.success(SUCCESS);
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
+      private void setFileTransGlobalRateLimit(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          long rate = args.getLong(0);
+          BandwidthShaper.setGlobalRate(rate);
+          callbackContext.success(SUCCESS);
+      }
+
+      private void setFileTransIdleTimeout(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          long idleTimeoutMs = args.getLong(0);
+          mFileTransferRegistry.setIdleTimeout(idleTimeoutMs);
+          callbackContext.success(SUCCESS);
+      }
+
+      private void getFileTransRegistryStats(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          callbackContext.success(mFileTransferRegistry.getStatsJson());
+      }
+
+      private void getFileTransStats(JSONArray args, CallbackContext callbackContext) throws JSONException {
+          int fileTransferId = args.getInt(0);
+
+          PluginFileTransferHandler fileTransferHandler = mFileTransferRegistry.get(fileTransferId);
+          if (fileTransferHandler != null) {
+              callbackContext.success(fileTransferHandler.getStatsJson());
+          } else {
+              callbackContext.error(INVALID_ID);
+          }
+      }
+
       private void pendFileTrans(JSONArray args, CallbackContext callbackContext) throws JSONException, CarrierException {
           int fileTransferId = args.getInt(0);
           String fileId = args.getString(1);
 
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(mFileTransferRegistry.get(fileTransferId)).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
@@ -1444,7 +2058,7 @@
 
           FileTransfer fileTransfer = null;
           try {
-              fileTransfer = Objects.requireNonNull(mFileTransferHandlerMap.get(fileTransferId)).getmFileTransfer();
+              fileTransfer = Objects.requireNonNull(mFileTransferRegistry.get(fileTransferId)).getmFileTransfer();
           } catch (NullPointerException e) {
           }
           if (fileTransfer != null) {
@@ -1461,17 +2075,34 @@
           JSONObject fileInfo = args.getJSONObject(2);
           PluginCarrierHandler carrierHandler = mCarrierMap.get(id);
           if (carrierHandler != null) {
+              FileTransferInfo info;
+              try {
+                  info = decodeFileTransferInfo(fileInfo);
+              } catch (IOException e) {
+                  callbackContext.error(e.getMessage());
+                  return;
+              }
 
               PluginFileTransferHandler pluginFileTransferHandler = new PluginFileTransferHandler(mFileTransferCallbackContext);
-              FileTransfer fileTransfer = carrierHandler.getFileTransferManager()
-                      .newFileTransfer(to,decodeFileTransferInfo(fileInfo),pluginFileTransferHandler);
+              pluginFileTransferHandler.setJournalDir(FileTransferJournal.getJournalDir(carrierHandler.mPersistentLocation));
+              int code = mFileTransferRegistry.add(pluginFileTransferHandler);
+              pluginFileTransferHandler.setFileTransferId(code);
+
+              FileTransfer fileTransfer = null;
+              try {
+                  fileTransfer = carrierHandler.getFileTransferManager()
+                          .newFileTransfer(to,info,pluginFileTransferHandler);
+              } finally {
+                  if (fileTransfer == null) {
+                      mFileTransferRegistry.discard(code);
+                  }
+              }
 
               if (fileTransfer != null) {
-                  Integer code = System.identityHashCode(fileTransfer);
                   pluginFileTransferHandler.setmFileTransfer(fileTransfer);
-                  pluginFileTransferHandler.setFileTransferId(code);
+                  pluginFileTransferHandler.onFileAdded(info.getFileId(), info.getSize());
+                  applyFileOptions(pluginFileTransferHandler, info, fileInfo);
 
-                  mFileTransferHandlerMap.put(code, pluginFileTransferHandler);
                   JSONObject r = new JSONObject();
                   r.put("fileTransferId", code);
                   callbackContext.success(r);
@@ -1489,10 +2120,71 @@
           callbackContext.success(jsonObject);
       }
 
-      private FileTransferInfo decodeFileTransferInfo(JSONObject jsonObject) throws JSONException {
+      private FileTransferInfo decodeFileTransferInfo(JSONObject jsonObject) throws JSONException, IOException {
           String filename = jsonObject.getString("filename");
           String fileId = jsonObject.getString("fileId");
-          long size = jsonObject.getLong("size");
+          if (!jsonObject.has("path")) {
+              return new FileTransferInfo(filename,fileId,jsonObject.getLong("size"));
+          }
+
+          File file = getSandboxFile(jsonObject.getString("path"));
+          if (!file.isFile()) {
+              throw new IOException("No such file: " + jsonObject.getString("path"));
+          }
+          // applyFileOptions opens the checked file, not what JS passed.
+          jsonObject.put("path", file.getPath());
+          long size = jsonObject.has("size") ? jsonObject.getLong("size") : file.length();
           return new FileTransferInfo(filename,fileId,size);
       }
+
+      /**
+       * Replace the sink path with the checked file, which the sink and its
+       * journal then use.
+       */
+      private void confineSinkPath(JSONObject sink) throws JSONException, IOException {
+          sink.put("path", getSandboxFile(FileTransferSink.getPath(sink)).getPath());
+      }
+
+      /**
+       * Map a path from JS to a file of the dApp. Relative paths are taken from
+       * its data directory, and the canonical file must lie in its data or temp
+       * directory, so links and ".." cannot reach files of the host app.
+       */
+      private File getSandboxFile(String path) throws IOException {
+          String dataPath = getDataPath();
+          if (dataPath == null) {
+              throw new IOException("No data directory");
+          }
+          File file = new File(path);
+          if (!file.isAbsolute()) {
+              file = new File(dataPath, path);
+          }
+          file = file.getCanonicalFile();
+
+          for (String root : new String[] { dataPath, getTempPath() }) {
+              if (root == null) {
+                  continue;
+              }
+              String rootPath = new File(root).getCanonicalPath() + File.separator;
+              if (file.getPath().startsWith(rootPath)) {
+                  return file;
+              }
+          }
+          throw new IOException("Path not allowed: " + path);
+      }
+
+      /**
+       * A file info carrying a local "path" is sent by the plugin itself when the
+       * peer pulls it, JS then never sees the data.
+       */
+      private void applyFileOptions(PluginFileTransferHandler fileTransferHandler, FileTransferInfo info,
+                                    JSONObject jsonObject) throws JSONException {
+          if (jsonObject.has("chunking")) {
+              fileTransferHandler.setChunkConfig(info.getFileId(), jsonObject.getJSONObject("chunking"));
+          }
+          if (jsonObject.has("path") && !fileTransferHandler.addFileSource(info.getFileId(),
+                  jsonObject.getString("path"), jsonObject.optInt("priority", 0))) {
+              Log.w(TAG, "Source of " + info.getFileId() + " kept, the file is being sent");
+          }
+      }
   }
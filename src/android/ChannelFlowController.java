@@ -0,0 +1,169 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.session.Stream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Credit based receive flow control for multiplexed channels.
+ *
+ * Every byte handed to the WebView stays in the channel's receive queue until
+ * JS acknowledges it. When a queue grows past the high watermark the remote
+ * peer is asked to pend the channel, and once acknowledgements drain it below
+ * the low watermark the channel is resumed.
+ *
+ * Data arrives in native callbacks of the stream, which must not call back
+ * into it, so pend and resume requests go out on a single thread of their own
+ * and keep their order.
+ */
+class ChannelFlowController {
+	private static String TAG = "ChannelFlowController";
+
+	private static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+	private static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+
+	private static final ExecutorService sValve = Executors.newSingleThreadExecutor(new DaemonThreadFactory(TAG));
+
+	private static class ChannelState {
+		long queuedBytes = 0;
+		boolean pended = false;
+		int pendCount = 0;
+		int resumeCount = 0;
+	}
+
+	private volatile Stream mStream = null;
+	private final long mHighWatermark;
+	private final long mLowWatermark;
+	private final Map<Integer, ChannelState> mChannels = new HashMap<>();
+	private int mPendCount = 0;
+	private int mResumeCount = 0;
+
+	private ChannelFlowController(long highWatermark, long lowWatermark) {
+		this.mHighWatermark = highWatermark;
+		this.mLowWatermark = lowWatermark;
+	}
+
+	/**
+	 * Flow control is opt in, so this is null unless the stream has "flowControl"
+	 * settings. The low watermark is clamped to the high one.
+	 */
+	static ChannelFlowController fromConfig(JSONObject config) {
+		if (config == null) {
+			return null;
+		}
+		long high = Math.max(config.optLong("highWatermark", DEFAULT_HIGH_WATERMARK), 1);
+		long low = Math.min(Math.max(config.optLong("lowWatermark", DEFAULT_LOW_WATERMARK), 0), high);
+		return new ChannelFlowController(high, low);
+	}
+
+	/**
+	 * The controller exists before the stream, so that data arriving while the
+	 * stream is being added is already counted.
+	 */
+	void setStream(Stream stream) {
+		mStream = stream;
+	}
+
+	private ChannelState getState(int channel) {
+		ChannelState state = mChannels.get(channel);
+		if (state == null) {
+			state = new ChannelState();
+			mChannels.put(channel, state);
+		}
+		return state;
+	}
+
+	synchronized void onDelivered(int channel, int length) {
+		ChannelState state = getState(channel);
+		state.queuedBytes += length;
+		if (!state.pended && state.queuedBytes >= mHighWatermark) {
+			state.pended = true;
+			state.pendCount++;
+			mPendCount++;
+			sValve.execute(() -> setPended(channel, true));
+		}
+	}
+
+	synchronized void onAcknowledged(int channel, long length) {
+		ChannelState state = mChannels.get(channel);
+		if (state == null) {
+			return;
+		}
+		state.queuedBytes = Math.max(state.queuedBytes - length, 0);
+		if (state.pended && state.queuedBytes <= mLowWatermark) {
+			state.pended = false;
+			state.resumeCount++;
+			mResumeCount++;
+			sValve.execute(() -> setPended(channel, false));
+		}
+	}
+
+	private void setPended(int channel, boolean pended) {
+		Stream stream = mStream;
+		if (stream == null) {
+			return;
+		}
+		try {
+			if (pended) {
+				stream.pendChannel(channel);
+			} else {
+				stream.resumeChannel(channel);
+			}
+		} catch (CarrierException e) {
+			e.printStackTrace();
+		}
+	}
+
+	synchronized void onChannelClosed(int channel) {
+		mChannels.remove(channel);
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject channels = new JSONObject();
+		for (Map.Entry<Integer, ChannelState> entry : mChannels.entrySet()) {
+			ChannelState state = entry.getValue();
+			JSONObject c = new JSONObject();
+			c.put("queuedBytes", state.queuedBytes);
+			c.put("pended", state.pended);
+			c.put("pendCount", state.pendCount);
+			c.put("resumeCount", state.resumeCount);
+			channels.put(String.valueOf(entry.getKey()), c);
+		}
+
+		JSONObject r = new JSONObject();
+		r.put("highWatermark", mHighWatermark);
+		r.put("lowWatermark", mLowWatermark);
+		r.put("pendCount", mPendCount);
+		r.put("resumeCount", mResumeCount);
+		r.put("channels", channels);
+		return r;
+	}
+}
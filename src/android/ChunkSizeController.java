@@ -0,0 +1,125 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Picks the chunk size of FileTransfer.writeData from how writes behave.
+ *
+ * Sizes follow AIMD between a minimum and a maximum: every write that is
+ * accepted in full, without a retry and within the latency target grows the
+ * chunk by one minimum size, unless throughput has clearly dropped since the
+ * chunk last grew. A short write, a retry or a slow write halves it. Relayed
+ * (TCP) paths settle on large chunks, lossy direct (UDP) paths on small ones.
+ */
+class ChunkSizeController {
+	private static String TAG = "ChunkSizeController";
+
+	private static final int DEFAULT_MIN_SIZE = 4 * 1024;
+	private static final int DEFAULT_MAX_SIZE = 128 * 1024;
+	private static final int DEFAULT_INITIAL_SIZE = 16 * 1024;
+	private static final int DEFAULT_TARGET_LATENCY_MS = 50;
+
+	// Weight of the newest sample in the smoothed throughput and latency.
+	private static final double SMOOTHING = 0.2;
+	// Growth stops while throughput is below this share of its average.
+	private static final double THROUGHPUT_DROP = 0.8;
+
+	private final int mMinSize;
+	private final int mMaxSize;
+	private final long mTargetLatencyNanos;
+
+	private int mChunkSize;
+	private double mThroughput = -1;
+	private double mLatencyNanos = -1;
+	private long mIncreases = 0;
+	private long mDecreases = 0;
+
+	private ChunkSizeController(int minSize, int maxSize, int initialSize, int targetLatencyMs) {
+		this.mMinSize = minSize;
+		this.mMaxSize = maxSize;
+		this.mTargetLatencyNanos = targetLatencyMs * 1000000L;
+		this.mChunkSize = initialSize;
+	}
+
+	/**
+	 * Create a controller from the "chunking" section of a file info. A null
+	 * config gives the defaults.
+	 */
+	static ChunkSizeController fromConfig(JSONObject config) {
+		if (config == null) {
+			config = new JSONObject();
+		}
+		int minSize = Math.max(config.optInt("minSize", DEFAULT_MIN_SIZE), 1);
+		int maxSize = Math.max(config.optInt("maxSize", DEFAULT_MAX_SIZE), minSize);
+		int initialSize = Math.min(Math.max(config.optInt("initialSize", DEFAULT_INITIAL_SIZE), minSize), maxSize);
+		int targetLatencyMs = Math.max(config.optInt("targetLatencyMs", DEFAULT_TARGET_LATENCY_MS), 1);
+		return new ChunkSizeController(minSize, maxSize, initialSize, targetLatencyMs);
+	}
+
+	int getMaxSize() {
+		return mMaxSize;
+	}
+
+	synchronized int getChunkSize() {
+		return mChunkSize;
+	}
+
+	/**
+	 * Feed back one write of a chunk of length bytes, of which written were
+	 * accepted after elapsedNanos, and whether it needed a retry.
+	 */
+	synchronized void onWrite(int length, int written, long elapsedNanos, boolean retried) {
+		long nanos = Math.max(elapsedNanos, 1);
+		mLatencyNanos = (mLatencyNanos < 0) ? nanos : SMOOTHING * nanos + (1 - SMOOTHING) * mLatencyNanos;
+
+		if (retried || written < length || nanos > mTargetLatencyNanos) {
+			mChunkSize = Math.max(mChunkSize / 2, mMinSize);
+			mDecreases++;
+			return;
+		}
+
+		double throughput = written * 1e9 / nanos;
+		boolean dropped = mThroughput > 0 && throughput < THROUGHPUT_DROP * mThroughput;
+		mThroughput = (mThroughput < 0) ? throughput : SMOOTHING * throughput + (1 - SMOOTHING) * mThroughput;
+		if (!dropped && mChunkSize < mMaxSize) {
+			mChunkSize = Math.min(mChunkSize + mMinSize, mMaxSize);
+			mIncreases++;
+		}
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("chunkSize", mChunkSize);
+		r.put("minSize", mMinSize);
+		r.put("maxSize", mMaxSize);
+		r.put("throughput", (long) Math.max(mThroughput, 0));
+		r.put("latencyMs", (mLatencyNanos < 0) ? 0 : mLatencyNanos / 1e6);
+		r.put("increases", mIncreases);
+		r.put("decreases", mDecreases);
+		return r;
+	}
+}
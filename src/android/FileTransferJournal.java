@@ -0,0 +1,267 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent record of the byte ranges of a received file that are safely on
+ * disk, so that an interrupted transfer can be pulled again from where it
+ * stopped.
+ *
+ * The journal lives in <persistent location>/filetransfer/<fileId>.journal.
+ * It starts with a header naming the destination path and file size, followed
+ * by fixed size range records. Every header and record carries a CRC32 and
+ * the file is synced after each append, so a torn write at the tail is simply
+ * ignored when the journal is read back.
+ */
+class FileTransferJournal {
+	private static String TAG = "FileTransferJournal";
+
+	private static final int MAGIC = 0x43524a31;
+	private static final int MAX_RECORDS = 1024;
+
+	private final File mFile;
+	private final String mPath;
+	private final long mSize;
+	// Merged, sorted [start, end) ranges.
+	private final List<long[]> mRanges = new ArrayList<>();
+	private FileOutputStream mOutput = null;
+	private int mRecords = 0;
+
+	private FileTransferJournal(File file, String path, long size) {
+		this.mFile = file;
+		this.mPath = path;
+		this.mSize = size;
+	}
+
+	static File getJournalDir(String persistentLocation) {
+		return new File(persistentLocation, "filetransfer");
+	}
+
+	private static File getJournalFile(File dir, String fileId) {
+		// fileIds are Base58, but never trust them as path components.
+		return new File(dir, fileId.replaceAll("[^A-Za-z0-9_-]", "_") + ".journal");
+	}
+
+	/**
+	 * Open the journal of fileId for a sink writing to path. A journal left by a
+	 * transfer to another path or of another size is discarded.
+	 */
+	static FileTransferJournal open(File dir, String fileId, String path, long size) throws IOException {
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		FileTransferJournal journal = new FileTransferJournal(getJournalFile(dir, fileId), path, size);
+		if (!journal.load()) {
+			journal.mRanges.clear();
+		}
+		// Start appending to a compact copy, never after a possibly torn tail.
+		journal.rewrite();
+		return journal;
+	}
+
+	/**
+	 * The offset up to which fileId was durably received, or 0 if unknown.
+	 */
+	static long getDurableOffset(File dir, String fileId, long size) {
+		FileTransferJournal journal = new FileTransferJournal(getJournalFile(dir, fileId), null, size);
+		return journal.load() ? journal.getDurableOffset() : 0;
+	}
+
+	synchronized long getDurableOffset() {
+		if (mRanges.isEmpty() || mRanges.get(0)[0] != 0) {
+			return 0;
+		}
+		return mRanges.get(0)[1];
+	}
+
+	/**
+	 * Record that [start, end) has been forced to storage.
+	 */
+	synchronized void commit(long start, long end) throws IOException {
+		if (end <= start) {
+			return;
+		}
+		merge(start, end);
+		if (mRecords >= MAX_RECORDS) {
+			rewrite();
+			return;
+		}
+		mOutput.write(encodeRecord(start, end));
+		mOutput.getFD().sync();
+		mRecords++;
+	}
+
+	synchronized void close() {
+		if (mOutput != null) {
+			try {
+				mOutput.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mOutput = null;
+		}
+	}
+
+	/**
+	 * Drop the journal once the file is complete.
+	 */
+	synchronized void delete() {
+		close();
+		mFile.delete();
+	}
+
+	private void merge(long start, long end) {
+		int i = 0;
+		while (i < mRanges.size() && mRanges.get(i)[1] < start) {
+			i++;
+		}
+		while (i < mRanges.size() && mRanges.get(i)[0] <= end) {
+			long[] range = mRanges.remove(i);
+			start = Math.min(start, range[0]);
+			end = Math.max(end, range[1]);
+		}
+		mRanges.add(i, new long[] { start, end });
+	}
+
+	/**
+	 * Read the journal back. Returns false if there is none or it belongs to
+	 * another transfer; a damaged tail only drops the records after it.
+	 */
+	private boolean load() {
+		if (!mFile.exists()) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+			if (in.readInt() != MAGIC) {
+				return false;
+			}
+			long size = in.readLong();
+			String path = in.readUTF();
+			if (in.readInt() != headerCrc(size, path)) {
+				return false;
+			}
+			if (size != mSize || (mPath != null && !mPath.equals(path))) {
+				return false;
+			}
+
+			while (true) {
+				long start;
+				long end;
+				int crc;
+				try {
+					start = in.readLong();
+					end = in.readLong();
+					crc = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (crc != recordCrc(start, end)) {
+					break;
+				}
+				merge(start, end);
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write a compact journal holding only the merged ranges, then keep
+	 * appending to it.
+	 */
+	private void rewrite() throws IOException {
+		close();
+		File temp = new File(mFile.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(buffer);
+			String path = (mPath != null) ? mPath : "";
+			data.writeInt(MAGIC);
+			data.writeLong(mSize);
+			data.writeUTF(path);
+			data.writeInt(headerCrc(mSize, path));
+			for (long[] range : mRanges) {
+				data.write(encodeRecord(range[0], range[1]));
+			}
+			out.write(buffer.toByteArray());
+			out.getFD().sync();
+		}
+		if (!temp.renameTo(mFile)) {
+			throw new IOException("Cannot replace " + mFile);
+		}
+		mRecords = mRanges.size();
+		mOutput = new FileOutputStream(mFile, true);
+	}
+
+	private static byte[] encodeRecord(long start, long end) {
+		byte[] record = new byte[20];
+		putLong(record, 0, start);
+		putLong(record, 8, end);
+		int crc = recordCrc(start, end);
+		record[16] = (byte) (crc >>> 24);
+		record[17] = (byte) (crc >>> 16);
+		record[18] = (byte) (crc >>> 8);
+		record[19] = (byte) crc;
+		return record;
+	}
+
+	private static void putLong(byte[] buffer, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			buffer[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static int recordCrc(long start, long end) {
+		byte[] buffer = new byte[16];
+		putLong(buffer, 0, start);
+		putLong(buffer, 8, end);
+		CRC32 crc = new CRC32();
+		crc.update(buffer);
+		return (int) crc.getValue();
+	}
+
+	private static int headerCrc(long size, String path) {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8];
+		putLong(buffer, 0, size);
+		crc.update(buffer);
+		crc.update(path.getBytes(StandardCharsets.UTF_8));
+		return (int) crc.getValue();
+	}
+}
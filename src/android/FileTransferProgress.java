@@ -0,0 +1,185 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limited progress reporting for the files of a transfer.
+ *
+ * The data paths only record positions, which is cheap enough to do per
+ * chunk. A timer running at the configured rate turns the files that moved
+ * since the last tick into progress reports with the instantaneous and the
+ * smoothed throughput and an ETA. The timer only runs while files are tracked.
+ */
+class FileTransferProgress {
+	private static String TAG = "FileTransferProgress";
+
+	// Weight of the newest sample in the smoothed throughput.
+	private static final double SMOOTHING = 0.3;
+
+	private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(TAG));
+
+	interface Listener {
+		/**
+		 * @param rate        bytes per second since the previous report
+		 * @param averageRate smoothed bytes per second
+		 * @param eta         seconds left, or -1 if the size or rate is unknown
+		 */
+		void onProgress(String fileId, long transferred, long size, long rate, long averageRate, long eta);
+	}
+
+	private static class Tracker {
+		long size = -1;
+		long transferred;
+		long reportedBytes;
+		long reportedAt;
+		double averageRate = -1;
+	}
+
+	private static class Report {
+		final String fileId;
+		final long transferred;
+		final long size;
+		final long rate;
+		final long averageRate;
+		final long eta;
+
+		Report(String fileId, long transferred, long size, long rate, long averageRate, long eta) {
+			this.fileId = fileId;
+			this.transferred = transferred;
+			this.size = size;
+			this.rate = rate;
+			this.averageRate = averageRate;
+			this.eta = eta;
+		}
+	}
+
+	private final Listener mListener;
+	private final long mIntervalMs;
+	private final Map<String, Tracker> mTrackers = new HashMap<>();
+	private ScheduledFuture<?> mTimer = null;
+
+	FileTransferProgress(Listener listener, double rateHz) {
+		this.mListener = listener;
+		this.mIntervalMs = Math.max((long) (1000 / rateHz), 10);
+	}
+
+	/**
+	 * Record that fileId has transferred bytes in total out of size (-1 if unknown).
+	 */
+	synchronized void update(String fileId, long transferred, long size) {
+		Tracker tracker = mTrackers.get(fileId);
+		if (tracker == null) {
+			tracker = new Tracker();
+			tracker.reportedBytes = transferred;
+			tracker.reportedAt = System.currentTimeMillis();
+			mTrackers.put(fileId, tracker);
+		}
+		tracker.transferred = transferred;
+		if (size >= 0) {
+			tracker.size = size;
+		}
+		if (mTimer == null) {
+			mTimer = sTimer.scheduleAtFixedRate(this::tick, mIntervalMs, mIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop tracking fileId, reporting its last position first if it moved
+	 * since the previous tick.
+	 */
+	void remove(String fileId) {
+		Report report = null;
+		synchronized (this) {
+			Tracker tracker = mTrackers.remove(fileId);
+			if (tracker != null) {
+				report = makeReport(fileId, tracker, System.currentTimeMillis());
+			}
+			stopIfIdle();
+		}
+		if (report != null) {
+			deliver(report);
+		}
+	}
+
+	synchronized void stop() {
+		mTrackers.clear();
+		stopIfIdle();
+	}
+
+	private void stopIfIdle() {
+		if (mTrackers.isEmpty() && mTimer != null) {
+			mTimer.cancel(false);
+			mTimer = null;
+		}
+	}
+
+	// Called with the lock held, null if the file did not move since its last report.
+	private Report makeReport(String fileId, Tracker tracker, long now) {
+		if (tracker.transferred == tracker.reportedBytes) {
+			return null;
+		}
+		long elapsed = Math.max(now - tracker.reportedAt, 1);
+		long rate = (tracker.transferred - tracker.reportedBytes) * 1000 / elapsed;
+		tracker.averageRate = (tracker.averageRate < 0) ? rate
+				: SMOOTHING * rate + (1 - SMOOTHING) * tracker.averageRate;
+		tracker.reportedBytes = tracker.transferred;
+		tracker.reportedAt = now;
+
+		long averageRate = (long) tracker.averageRate;
+		long eta = (tracker.size >= 0 && averageRate > 0)
+				? Math.max(tracker.size - tracker.transferred, 0) / averageRate : -1;
+		return new Report(fileId, tracker.transferred, tracker.size, rate, averageRate, eta);
+	}
+
+	private void tick() {
+		List<Report> reports = new ArrayList<>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, Tracker> entry : mTrackers.entrySet()) {
+				Report report = makeReport(entry.getKey(), entry.getValue(), now);
+				if (report != null) {
+					reports.add(report);
+				}
+			}
+		}
+
+		// Report outside the lock, the data paths must never wait on the bridge.
+		for (Report report : reports) {
+			deliver(report);
+		}
+	}
+
+	private void deliver(Report report) {
+		mListener.onProgress(report.fileId, report.transferred, report.size,
+				report.rate, report.averageRate, report.eta);
+	}
+}
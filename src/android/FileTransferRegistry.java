@@ -0,0 +1,211 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the live file transfers of the plugin.
+ *
+ * A transfer leaves the table when JS closes it, when the peer closes it or
+ * it fails, or when it has seen no activity for the idle timeout while no
+ * file is queued or moving, if the app set one. Evicted transfers are closed
+ * natively and JS is told with an onEvicted event, so neither side keeps dead
+ * transfers around.
+ */
+class FileTransferRegistry {
+	private static String TAG = "FileTransferRegistry";
+
+	// Off unless the app sets it, a transfer waiting for the peer to connect looks idle.
+	private static final long DEFAULT_IDLE_TIMEOUT_MS = 0;
+	private static final long MIN_SWEEP_INTERVAL_MS = 1000;
+	private static final long MAX_SWEEP_INTERVAL_MS = 30 * 1000;
+
+	static final String REASON_CLOSED = "closed";
+	static final String REASON_FAILED = "failed";
+	static final String REASON_IDLE = "idle";
+
+	// Evictions run here, never inside a native callback of the transfer itself.
+	private static final ScheduledExecutorService sSweeper = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(TAG));
+
+	private final HandleTable<PluginFileTransferHandler> mTable = new HandleTable<>();
+	private volatile long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+	private ScheduledFuture<?> mSweep = null;
+
+	private final AtomicLong mOpened = new AtomicLong(0);
+	private final AtomicLong mClosed = new AtomicLong(0);
+	private final AtomicLong mEvictedTerminal = new AtomicLong(0);
+	private final AtomicLong mEvictedIdle = new AtomicLong(0);
+
+	/**
+	 * Register a handler before its native transfer exists and return its id.
+	 */
+	int add(PluginFileTransferHandler handler) {
+		int handle = mTable.add(handler);
+		handler.setRegistry(this);
+		mOpened.incrementAndGet();
+		scheduleSweep();
+		return handle;
+	}
+
+	/**
+	 * Look up a transfer for an action from JS, which counts as activity.
+	 */
+	PluginFileTransferHandler get(int handle) {
+		PluginFileTransferHandler handler = mTable.get(handle);
+		if (handler != null) {
+			handler.touch();
+		}
+		return handler;
+	}
+
+	/**
+	 * Drop a handler whose native transfer could not be created.
+	 */
+	void discard(int handle) {
+		mTable.remove(handle);
+	}
+
+	/**
+	 * Close a transfer on request of JS. Returns false if the id is unknown.
+	 */
+	boolean close(int handle) {
+		PluginFileTransferHandler handler = mTable.remove(handle);
+		if (handler == null) {
+			return false;
+		}
+		mClosed.incrementAndGet();
+		handler.close();
+		handler.closeFileTransfer();
+		return true;
+	}
+
+	/**
+	 * The transfer reached a terminal state; it is evicted shortly after.
+	 */
+	void onTerminated(PluginFileTransferHandler handler, boolean failed) {
+		int handle = handler.getFileTransferId();
+		sSweeper.execute(() -> {
+			if (evict(handle, failed ? REASON_FAILED : REASON_CLOSED)) {
+				mEvictedTerminal.incrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Set the idle timeout in milliseconds, 0 keeps idle transfers forever.
+	 */
+	void setIdleTimeout(long idleTimeoutMs) {
+		mIdleTimeoutMs = Math.max(idleTimeoutMs, 0);
+		synchronized (this) {
+			if (mSweep != null) {
+				mSweep.cancel(false);
+				mSweep = null;
+			}
+		}
+		scheduleSweep();
+	}
+
+	/**
+	 * Close every transfer, used when the plugin goes away.
+	 */
+	void clear() {
+		mTable.clear((handle, handler) -> {
+			handler.close();
+			handler.closeFileTransfer();
+		});
+		synchronized (this) {
+			if (mSweep != null) {
+				mSweep.cancel(false);
+				mSweep = null;
+			}
+		}
+	}
+
+	private boolean evict(int handle, String reason) {
+		PluginFileTransferHandler handler = mTable.remove(handle);
+		if (handler == null) {
+			return false;
+		}
+		handler.close();
+		handler.closeFileTransfer();
+		handler.sendEvicted(reason);
+		return true;
+	}
+
+	private synchronized void scheduleSweep() {
+		long timeout = mIdleTimeoutMs;
+		if (mSweep != null || timeout == 0) {
+			return;
+		}
+		long interval = Math.min(Math.max(timeout / 4, MIN_SWEEP_INTERVAL_MS), MAX_SWEEP_INTERVAL_MS);
+		mSweep = sSweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private void sweep() {
+		long timeout = mIdleTimeoutMs;
+		if (timeout == 0) {
+			return;
+		}
+		long idleSince = System.currentTimeMillis() - timeout;
+		List<Integer> idle = new ArrayList<>();
+		mTable.forEach((handle, handler) -> {
+			if (handler.getLastActivity() < idleSince && !handler.isBusy()) {
+				idle.add(handle);
+			}
+		});
+		for (int handle : idle) {
+			if (evict(handle, REASON_IDLE)) {
+				mEvictedIdle.incrementAndGet();
+			}
+		}
+
+		synchronized (this) {
+			if (mTable.size() == 0 && mSweep != null) {
+				mSweep.cancel(false);
+				mSweep = null;
+			}
+		}
+	}
+
+	JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("live", mTable.size());
+		r.put("opened", mOpened.get());
+		r.put("closed", mClosed.get());
+		r.put("evictedTerminal", mEvictedTerminal.get());
+		r.put("evictedIdle", mEvictedIdle.get());
+		r.put("idleTimeoutMs", mIdleTimeoutMs);
+		return r;
+	}
+}
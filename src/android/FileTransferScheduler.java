@@ -0,0 +1,277 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides which files of a transfer move data at any time.
+ *
+ * Native sends and scheduled pulls are queued as jobs and at most
+ * "concurrency" of them run at once. Higher priorities start first, equal
+ * priorities in submission order. The scheduler also keeps the aggregate
+ * throughput of the transfer, counted over the time it had work running.
+ *
+ * Jobs are started on a thread of the scheduler. Slots free up inside native
+ * callbacks such as onDataFinished, and starting the next pull right there
+ * would re-enter the SDK from its own callback thread.
+ */
+class FileTransferScheduler {
+	private static String TAG = "FileTransferScheduler";
+
+	static final int DEFAULT_CONCURRENCY = 4;
+
+	static final int SEND = 0;
+	static final int RECEIVE = 1;
+
+	private static final ExecutorService sStarter = Executors.newSingleThreadExecutor(new DaemonThreadFactory(TAG));
+
+	interface Runner {
+		/**
+		 * Start moving the data of a job; a thrown exception fails the job.
+		 */
+		void startJob(Job job) throws Exception;
+
+		long getTransferred(Job job);
+	}
+
+	static class Job {
+		final String fileId;
+		final int direction;
+		final int priority;
+		final Object payload;
+		// What moves the data once started, a sender or a sink.
+		Object target = null;
+		long sequence;
+		long offset;
+		long transferred = 0;
+		boolean running = false;
+
+		Job(String fileId, int direction, int priority, long offset, Object payload) {
+			this.fileId = fileId;
+			this.direction = direction;
+			this.priority = priority;
+			this.offset = offset;
+			this.payload = payload;
+		}
+	}
+
+	private final Runner mRunner;
+	private final PriorityQueue<Job> mQueue = new PriorityQueue<>(16, (a, b) -> {
+		if (a.priority != b.priority) {
+			return (a.priority > b.priority) ? -1 : 1;
+		}
+		return Long.compare(a.sequence, b.sequence);
+	});
+	private final Map<String, Job> mActive = new LinkedHashMap<>();
+	private int mConcurrency = DEFAULT_CONCURRENCY;
+	private long mSequence = 0;
+	private boolean mPumpScheduled = false;
+
+	private long mCompleted = 0;
+	private long mFailed = 0;
+	private long mCancelled = 0;
+	private long mFinishedBytes = 0;
+	private long mBusySince = 0;
+	private long mBusyMillis = 0;
+
+	FileTransferScheduler(Runner runner) {
+		this.mRunner = runner;
+	}
+
+	void setConcurrency(int concurrency) {
+		synchronized (this) {
+			mConcurrency = Math.max(concurrency, 1);
+		}
+		pump();
+	}
+
+	/**
+	 * Queue a job, replacing a queued one for the same file.
+	 */
+	void submit(Job job) {
+		synchronized (this) {
+			removeQueued(job.fileId);
+			job.sequence = mSequence++;
+			mQueue.add(job);
+		}
+		pump();
+	}
+
+	synchronized boolean isActive(String fileId) {
+		return mActive.containsKey(fileId);
+	}
+
+	synchronized boolean isBusy() {
+		return !mActive.isEmpty() || !mQueue.isEmpty();
+	}
+
+	/**
+	 * Drop a queued job, or return the running job so the caller can stop it.
+	 */
+	Job cancel(String fileId) {
+		Job job;
+		synchronized (this) {
+			if (removeQueued(fileId)) {
+				mCancelled++;
+				return null;
+			}
+			job = mActive.remove(fileId);
+			if (job == null) {
+				return null;
+			}
+			mCancelled++;
+			retire(job);
+		}
+		pump();
+		return job;
+	}
+
+	/**
+	 * A running job reached its end, successfully or not.
+	 */
+	void onFinished(String fileId, boolean success) {
+		synchronized (this) {
+			Job job = mActive.remove(fileId);
+			if (job == null) {
+				return;
+			}
+			if (success) {
+				mCompleted++;
+			} else {
+				mFailed++;
+			}
+			retire(job);
+		}
+		pump();
+	}
+
+	/**
+	 * Forget everything, used when the transfer goes away.
+	 */
+	synchronized void clear() {
+		mQueue.clear();
+		for (Job job : mActive.values()) {
+			retire(job);
+		}
+		mActive.clear();
+	}
+
+	private boolean removeQueued(String fileId) {
+		for (Job job : mQueue) {
+			if (job.fileId.equals(fileId)) {
+				mQueue.remove(job);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Called with the lock held when a job leaves the active set.
+	private void retire(Job job) {
+		job.running = false;
+		mFinishedBytes += mRunner.getTransferred(job);
+		if (mActive.isEmpty() && mBusySince != 0) {
+			mBusyMillis += System.currentTimeMillis() - mBusySince;
+			mBusySince = 0;
+		}
+	}
+
+	private void pump() {
+		synchronized (this) {
+			if (mPumpScheduled) {
+				return;
+			}
+			mPumpScheduled = true;
+		}
+		sStarter.execute(this::startJobs);
+	}
+
+	private void startJobs() {
+		List<Job> started = new ArrayList<>();
+		synchronized (this) {
+			mPumpScheduled = false;
+			while (mActive.size() < mConcurrency && !mQueue.isEmpty()) {
+				Job job = mQueue.poll();
+				job.running = true;
+				mActive.put(job.fileId, job);
+				started.add(job);
+			}
+			if (!mActive.isEmpty() && mBusySince == 0) {
+				mBusySince = System.currentTimeMillis();
+			}
+		}
+
+		for (Job job : started) {
+			try {
+				mRunner.startJob(job);
+			} catch (Exception e) {
+				e.printStackTrace();
+				onFinished(job.fileId, false);
+			}
+		}
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		long now = System.currentTimeMillis();
+		long busyMillis = mBusyMillis + ((mBusySince != 0) ? now - mBusySince : 0);
+		long bytes = mFinishedBytes;
+
+		JSONArray active = new JSONArray();
+		for (Job job : mActive.values()) {
+			long transferred = mRunner.getTransferred(job);
+			bytes += transferred;
+			JSONObject j = new JSONObject();
+			j.put("fileId", job.fileId);
+			j.put("direction", (job.direction == SEND) ? "send" : "receive");
+			j.put("priority", job.priority);
+			j.put("transferred", transferred);
+			active.put(j);
+		}
+		JSONArray queued = new JSONArray();
+		for (Job job : mQueue) {
+			queued.put(job.fileId);
+		}
+
+		JSONObject r = new JSONObject();
+		r.put("concurrency", mConcurrency);
+		r.put("active", active);
+		r.put("queued", queued);
+		r.put("completed", mCompleted);
+		r.put("failed", mFailed);
+		r.put("cancelled", mCancelled);
+		r.put("bytes", bytes);
+		r.put("throughput", (busyMillis > 0) ? bytes * 1000 / busyMillis : 0);
+		return r;
+	}
+}
@@ -0,0 +1,272 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.filetransfer.FileTransfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves pull requests of one file natively from a local path.
+ *
+ * Once the peer pulls the file, chunks are read with positional FileChannel
+ * reads and written to the transfer on a background thread until the end of
+ * the file, where sendFinish is called. Chunk sizes follow a
+ * ChunkSizeController and every chunk waits for its share of the
+ * BandwidthShaper limits. Pend, resume and cancel notifications from the peer
+ * pause, continue or stop the loop; a new pull request restarts it from the
+ * requested offset.
+ */
+class FileTransferSender implements Runnable {
+	private static String TAG = "FileTransferSender";
+
+	private static final int MAX_RETRIES = 8;
+	private static final int RETRY_DELAY_MS = 20;
+
+	private static final ExecutorService sSender = Executors.newCachedThreadPool(new DaemonThreadFactory(TAG));
+
+	interface Listener {
+		void onSendProgress(String fileId, long position, long size);
+		void onSendFinished(String fileId, long size, String sha256);
+		void onSendFailed(String fileId, String reason);
+	}
+
+	private final String mFileId;
+	private final String mPath;
+	private final Listener mListener;
+	private final ChunkSizeController mChunker;
+	private final BandwidthShaper mShaper;
+
+	private FileTransfer mFileTransfer = null;
+	private long mNextOffset = 0;
+	private boolean mRestart = false;
+	private boolean mRunning = false;
+	private boolean mPaused = false;
+	private boolean mCancelled = false;
+	private long mSentBytes = 0;
+	// Whether the last write needed a retry; only used on the sending thread.
+	private boolean mRetried = false;
+	private final TransferDigest mDigest = TransferDigest.create(0);
+
+	FileTransferSender(String fileId, String path, ChunkSizeController chunker, BandwidthShaper shaper,
+					   Listener listener) {
+		this.mFileId = fileId;
+		this.mPath = path;
+		this.mChunker = chunker;
+		this.mShaper = shaper;
+		this.mListener = listener;
+	}
+
+	String getFileId() {
+		return mFileId;
+	}
+
+	String getPath() {
+		return mPath;
+	}
+
+	/**
+	 * Start sending from offset, or move a running loop to offset.
+	 */
+	void start(FileTransfer fileTransfer, long offset) {
+		synchronized (this) {
+			mFileTransfer = fileTransfer;
+			mNextOffset = offset;
+			mRestart = true;
+			mPaused = false;
+			mCancelled = false;
+			notifyAll();
+			if (mRunning) {
+				return;
+			}
+			mRunning = true;
+		}
+		sSender.execute(this);
+	}
+
+	synchronized void pause() {
+		mPaused = true;
+	}
+
+	synchronized void resume() {
+		mPaused = false;
+		notifyAll();
+	}
+
+	synchronized void cancel() {
+		mCancelled = true;
+		notifyAll();
+	}
+
+	synchronized long getSentBytes() {
+		return mSentBytes;
+	}
+
+	@Override
+	public void run() {
+		String error = null;
+		long size = 0;
+		FileTransfer fileTransfer = null;
+		try (RandomAccessFile file = new RandomAccessFile(mPath, "r")) {
+			FileChannel channel = file.getChannel();
+			size = channel.size();
+			byte[] chunk = new byte[0];
+			long position = 0;
+
+			while (true) {
+				boolean restarted = false;
+				boolean done = false;
+				synchronized (this) {
+					while (mPaused && !mCancelled) {
+						wait();
+					}
+					if (mCancelled) {
+						mRunning = false;
+						return;
+					}
+					if (mRestart) {
+						position = mNextOffset;
+						mRestart = false;
+						restarted = true;
+					}
+					if (position >= size) {
+						mRunning = false;
+						done = true;
+					}
+					fileTransfer = mFileTransfer;
+				}
+				if (restarted && mDigest != null) {
+					// Only a resumed send reads its prefix a second time.
+					mDigest.catchUp(channel, position);
+				}
+				if (done) {
+					break;
+				}
+
+				int length = (int) Math.min(mChunker.getChunkSize(), size - position);
+				// The SDK copies the data before returning, so chunks of the same size reuse one array.
+				if (chunk.length != length) {
+					chunk = new byte[length];
+				}
+				if (read(channel, chunk, position, length) < length) {
+					throw new IOException("Unexpected end of file");
+				}
+				if (!throttle(length)) {
+					continue;
+				}
+				long started = System.nanoTime();
+				int written = write(fileTransfer, chunk);
+				if (written <= 0) {
+					error = "writeFileTransData failed!";
+					break;
+				}
+				mChunker.onWrite(length, written, System.nanoTime() - started, mRetried);
+				if (mDigest != null) {
+					mDigest.update(position, chunk, 0, written);
+				}
+				position += written;
+				synchronized (this) {
+					mSentBytes = position;
+				}
+				mListener.onSendProgress(mFileId, position, size);
+			}
+
+			if (error == null) {
+				fileTransfer.sendFinish(mFileId);
+			}
+		} catch (IOException e) {
+			error = "File read error: " + e.getMessage();
+		} catch (CarrierException e) {
+			error = String.format("writeFileTransData error (0x%x)", e.getErrorCode());
+		} catch (InterruptedException e) {
+			error = "Interrupted";
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			mRunning = false;
+		}
+		if (error != null) {
+			mListener.onSendFailed(mFileId, error);
+		} else {
+			mListener.onSendFinished(mFileId, size, (mDigest != null) ? mDigest.finish() : null);
+		}
+	}
+
+	/**
+	 * Wait until length bytes may be written. Returns false if a pause, cancel
+	 * or restart cut the wait short, in which case the reserved bytes are given
+	 * back and the loop starts over.
+	 */
+	private synchronized boolean throttle(int length) throws InterruptedException {
+		long deadline = System.nanoTime() + mShaper.reserve(mFileId, length);
+		while (true) {
+			if (mPaused || mCancelled || mRestart) {
+				mShaper.refund(mFileId, length);
+				return false;
+			}
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return true;
+			}
+			wait(Math.max(left / 1000000, 1));
+		}
+	}
+
+	private static int read(FileChannel channel, byte[] buffer, long position, int length) throws IOException {
+		ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+		while (target.hasRemaining()) {
+			if (channel.read(target, position + target.position()) < 0) {
+				break;
+			}
+		}
+		return target.position();
+	}
+
+	/**
+	 * Write one chunk, retrying with a growing delay while the transfer is busy.
+	 * Returns the bytes written, or 0 once the retries are used up.
+	 */
+	private int write(FileTransfer fileTransfer, byte[] chunk) throws CarrierException, InterruptedException {
+		for (int attempts = 0; ; attempts++) {
+			mRetried = attempts > 0;
+			try {
+				int written = fileTransfer.writeData(mFileId, chunk);
+				if (written > 0 || attempts >= MAX_RETRIES) {
+					return written;
+				}
+			} catch (CarrierException e) {
+				if (attempts >= MAX_RETRIES) {
+					throw e;
+				}
+			}
+			Thread.sleep((long) RETRY_DELAY_MS * (attempts + 1));
+		}
+	}
+}
@@ -0,0 +1,237 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the chunks of one received file straight to disk.
+ *
+ * Chunks are written with positional FileChannel writes starting at the pull
+ * offset, so a pulled range lands where it belongs even in an existing file.
+ * The file can be preallocated to its announced size, and data is forced to
+ * storage every fsyncBytes and once more when the transfer finishes.
+ */
+class FileTransferSink {
+	private static String TAG = "FileTransferSink";
+
+	private static final long DEFAULT_PROGRESS_BYTES = 256 * 1024;
+	// Checkpoint interval when a journal is kept but no fsyncBytes was given.
+	private static final long DEFAULT_CHECKPOINT_BYTES = 1024 * 1024;
+
+	private final String mFileId;
+	private final String mPath;
+	private final long mSize;
+	private final long mFsyncBytes;
+	private final long mProgressBytes;
+	private final boolean mPreallocated;
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final FileTransferJournal mJournal;
+	private final TransferDigest mDigest;
+	private final String mExpectedSha256;
+	private String mSha256 = null;
+	private long mPosition;
+	private long mSyncedPosition;
+	private long mUnsyncedBytes = 0;
+	private long mLastProgress;
+
+	private FileTransferSink(String fileId, String path, long size, long offset, boolean preallocate,
+							 long fsyncBytes, long progressBytes, FileTransferJournal journal,
+							 String expectedSha256) throws IOException {
+		this.mFileId = fileId;
+		this.mPath = path;
+		this.mSize = size;
+		this.mFsyncBytes = (fsyncBytes == 0 && journal != null) ? DEFAULT_CHECKPOINT_BYTES : fsyncBytes;
+		this.mProgressBytes = progressBytes;
+		this.mJournal = journal;
+		this.mDigest = TransferDigest.create(0);
+		this.mExpectedSha256 = expectedSha256;
+		this.mPosition = offset;
+		this.mSyncedPosition = offset;
+		this.mLastProgress = offset;
+
+		File parent = new File(path).getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		mFile = new RandomAccessFile(path, "rw");
+		mChannel = mFile.getChannel();
+		try {
+			if (offset == 0) {
+				mFile.setLength(0);
+			}
+			// A ranged pull into a shorter file has no prefix to hash, preallocated zeros are not one either.
+			boolean hasPrefix = offset <= mFile.length();
+			mPreallocated = preallocate && size > 0 && mFile.length() < size;
+			if (mPreallocated) {
+				mFile.setLength(size);
+			}
+			if (mDigest != null) {
+				if (hasPrefix) {
+					// A resumed file hashes the part it already has, new data is hashed as it arrives.
+					mDigest.catchUp(mChannel, offset);
+				} else {
+					mDigest.skipTo(offset);
+				}
+			}
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		}
+	}
+
+	static String getPath(JSONObject config) throws IOException {
+		String path = config.optString("path", null);
+		if (path == null || path.isEmpty()) {
+			throw new IOException("Missing sink path");
+		}
+		return path;
+	}
+
+	/**
+	 * Create a sink from the sink config of pullData. The config needs a "path",
+	 * "preallocate" and "fsyncBytes" are optional. size is the announced file
+	 * size, or -1 when unknown. With a journal, every sync also checkpoints the
+	 * synced range. An optional "sha256" is compared with the received file.
+	 */
+	static FileTransferSink fromConfig(JSONObject config, String fileId, long size, long offset,
+									   FileTransferJournal journal) throws IOException {
+		String path = getPath(config);
+		boolean preallocate = config.optBoolean("preallocate", false);
+		long fsyncBytes = Math.max(config.optLong("fsyncBytes", 0), 0);
+		long progressBytes = Math.max(config.optLong("progressBytes", DEFAULT_PROGRESS_BYTES), 1);
+		String expectedSha256 = config.optString("sha256", null);
+		return new FileTransferSink(fileId, path, size, offset, preallocate, fsyncBytes, progressBytes, journal,
+				(expectedSha256 != null) ? expectedSha256.toLowerCase() : null);
+	}
+
+	String getFileId() {
+		return mFileId;
+	}
+
+	String getPath() {
+		return mPath;
+	}
+
+	long getSize() {
+		return mSize;
+	}
+
+	synchronized long getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * The SHA-256 of the whole file once finished, or null if unavailable.
+	 */
+	synchronized String getSha256() {
+		return mSha256;
+	}
+
+	String getExpectedSha256() {
+		return mExpectedSha256;
+	}
+
+	/**
+	 * Append a received chunk. Returns true when a progress event is due.
+	 */
+	synchronized boolean write(byte[] data) throws IOException {
+		if (mDigest != null) {
+			mDigest.update(mPosition, data, 0, data.length);
+		}
+		ByteBuffer source = ByteBuffer.wrap(data);
+		while (source.hasRemaining()) {
+			mPosition += mChannel.write(source, mPosition);
+		}
+
+		mUnsyncedBytes += data.length;
+		if (mFsyncBytes > 0 && mUnsyncedBytes >= mFsyncBytes) {
+			checkpoint();
+		}
+
+		if (mPosition - mLastProgress >= mProgressBytes) {
+			mLastProgress = mPosition;
+			return true;
+		}
+		return false;
+	}
+
+	private void checkpoint() throws IOException {
+		mChannel.force(false);
+		if (mJournal != null) {
+			mJournal.commit(mSyncedPosition, mPosition);
+		}
+		mSyncedPosition = mPosition;
+		mUnsyncedBytes = 0;
+	}
+
+	/**
+	 * Flush everything to storage and close. A preallocated file is cut back to
+	 * the bytes actually received, and the journal is no longer needed.
+	 */
+	synchronized void finish() throws IOException {
+		try {
+			if (mPreallocated && mPosition < mSize) {
+				mChannel.truncate(mPosition);
+			}
+			mChannel.force(true);
+			if (mJournal != null) {
+				mJournal.delete();
+			}
+			if (mDigest != null) {
+				mSha256 = mDigest.finish();
+			}
+		} finally {
+			mFile.close();
+		}
+	}
+
+	/**
+	 * Stop before the end, keeping what was received so far resumable.
+	 */
+	synchronized void close() {
+		try {
+			if (mUnsyncedBytes > 0) {
+				checkpoint();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (mJournal != null) {
+			mJournal.close();
+		}
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,473 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.elastos.carrier.Carrier;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent outbound queue of friend messages, one per friend.
+ *
+ * Queued messages are appended to <persistent location>/outbox/<friendId>.outbox
+ * before the caller gets their id, and sent in order in the background in
+ * bursts of up to BATCH_SIZE. A message that cannot be sent is retried with a
+ * growing delay, and right away when the friend comes online again. Long
+ * messages are fragmented like those of sendFriendMessage. Sent and
+ * given up messages are acknowledged in the same file, which is compacted as
+ * acknowledgements pile up and removed once the queue is empty. Records carry
+ * a CRC32, so a torn tail only loses the record being written.
+ */
+class FriendMessageOutbox {
+	private static String TAG = "FriendMessageOutbox";
+
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_ACK = 2;
+
+	private static final int BATCH_SIZE = 32;
+	private static final int MAX_QUEUED = 1000;
+	private static final int MAX_ATTEMPTS = 16;
+	private static final long RETRY_DELAY_MS = 1000;
+	private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+	private static final int COMPACT_ACKS = 256;
+
+	private static final ScheduledExecutorService sSender = Executors.newScheduledThreadPool(2, new DaemonThreadFactory(TAG));
+
+	interface Listener {
+		void onMessageSent(String to, long messageId, String text, boolean isOffline);
+		void onMessageFailed(String to, long messageId, String reason);
+	}
+
+	private static class Message {
+		final long id;
+		final String text;
+		int attempts = 0;
+
+		Message(long id, String text) {
+			this.id = id;
+			this.text = text;
+		}
+	}
+
+	private static class Peer {
+		final String friendId;
+		final File file;
+		final ArrayDeque<Message> messages = new ArrayDeque<>();
+		FileOutputStream output = null;
+		int acks = 0;
+		boolean draining = false;
+		ScheduledFuture<?> retry = null;
+
+		Peer(String friendId, File file) {
+			this.friendId = friendId;
+			this.file = file;
+		}
+	}
+
+	private final Carrier mCarrier;
+	private final MessageCompressor mCompressor;
+	private final PeerCapabilities mPeerCaps;
+	private final File mDir;
+	private final Listener mListener;
+	private final Map<String, Peer> mPeers = new ConcurrentHashMap<>();
+	private final AtomicLong mNextId = new AtomicLong(System.currentTimeMillis());
+	private volatile boolean mClosed = false;
+
+	private final AtomicLong mSent = new AtomicLong(0);
+	private final AtomicLong mFailed = new AtomicLong(0);
+	private final AtomicLong mRetries = new AtomicLong(0);
+
+	FriendMessageOutbox(Carrier carrier, MessageCompressor compressor, PeerCapabilities peerCaps, File dir, Listener listener) {
+		this.mCarrier = carrier;
+		this.mCompressor = compressor;
+		this.mPeerCaps = peerCaps;
+		this.mDir = dir;
+		this.mListener = listener;
+	}
+
+	static File getOutboxDir(String persistentLocation) {
+		return new File(persistentLocation, "outbox");
+	}
+
+	/**
+	 * Restore the queues left by an earlier run and start sending them.
+	 */
+	void load() {
+		File[] files = mDir.listFiles((dir, name) -> name.endsWith(".outbox"));
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			Peer peer = new Peer(name.substring(0, name.length() - ".outbox".length()), file);
+			synchronized (peer) {
+				read(peer);
+				if (peer.messages.isEmpty()) {
+					file.delete();
+					continue;
+				}
+				try {
+					rewrite(peer);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			mPeers.put(peer.friendId, peer);
+			scheduleDrain(peer, 0);
+		}
+	}
+
+	/**
+	 * Queue a message to a friend and return its id. The message is on disk
+	 * when this returns.
+	 *
+	 * @throws IOException if the friend's queue is full or cannot be written.
+	 */
+	long enqueue(String to, String text) throws IOException {
+		if (mClosed) {
+			throw new IOException("Outbox closed");
+		}
+		Peer peer = getPeer(to);
+		long id;
+		synchronized (peer) {
+			if (peer.messages.size() >= MAX_QUEUED) {
+				throw new IOException("Outbox full");
+			}
+			id = mNextId.getAndIncrement();
+			append(peer, encodeRecord(RECORD_ADD, id, text.getBytes(StandardCharsets.UTF_8)));
+			peer.messages.add(new Message(id, text));
+		}
+		scheduleDrain(peer, 0);
+		return id;
+	}
+
+	/**
+	 * Run a send on the outbox threads, for callers that are inside a Carrier
+	 * callback and must not call back into the SDK.
+	 */
+	static void post(Runnable task) {
+		sSender.execute(task);
+	}
+
+	/**
+	 * The friend is reachable again, send its queue now instead of after the
+	 * back-off.
+	 */
+	void onFriendOnline(String friendId) {
+		Peer peer = mPeers.get(friendId);
+		if (peer == null) {
+			return;
+		}
+		synchronized (peer) {
+			if (peer.retry != null && peer.retry.cancel(false)) {
+				peer.retry = null;
+				peer.draining = false;
+			}
+			Message head = peer.messages.peek();
+			if (head != null) {
+				head.attempts = 0;
+			}
+		}
+		scheduleDrain(peer, 0);
+	}
+
+	void close() {
+		mClosed = true;
+		for (Peer peer : mPeers.values()) {
+			synchronized (peer) {
+				if (peer.retry != null) {
+					peer.retry.cancel(false);
+					peer.retry = null;
+				}
+				closeOutput(peer);
+			}
+		}
+	}
+
+	private Peer getPeer(String friendId) {
+		Peer peer = mPeers.get(friendId);
+		if (peer == null) {
+			// friendIds are Base58, but never trust them as path components.
+			File file = new File(mDir, friendId.replaceAll("[^A-Za-z0-9_-]", "_") + ".outbox");
+			peer = new Peer(friendId, file);
+			Peer existing = mPeers.putIfAbsent(friendId, peer);
+			if (existing != null) {
+				peer = existing;
+			}
+		}
+		return peer;
+	}
+
+	private void scheduleDrain(Peer peer, long delayMs) {
+		synchronized (peer) {
+			if (peer.draining || mClosed) {
+				return;
+			}
+			peer.draining = true;
+		}
+		sSender.schedule(() -> drain(peer), delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void drain(Peer peer) {
+		for (int sent = 0; ; sent++) {
+			Message message;
+			synchronized (peer) {
+				peer.retry = null;
+				message = peer.messages.peek();
+				if (message == null || mClosed) {
+					peer.draining = false;
+					return;
+				}
+				if (sent == BATCH_SIZE) {
+					// Give other friends a turn, the queue goes on right after them.
+					peer.draining = false;
+					break;
+				}
+			}
+
+			boolean isOffline;
+			try {
+				byte[] data = mCompressor.encodeFriendMessage(peer.friendId, message.text.getBytes(StandardCharsets.UTF_8));
+				isOffline = MessageFragmenter.send(mCarrier, mPeerCaps, peer.friendId, data);
+			} catch (CarrierException e) {
+				mRetries.incrementAndGet();
+				String reason = String.format("sendFriendMessage error (0x%x)", e.getErrorCode());
+				synchronized (peer) {
+					message.attempts++;
+					if (message.attempts < MAX_ATTEMPTS) {
+						long delay = Math.min(RETRY_DELAY_MS << Math.min(message.attempts - 1, 16), MAX_RETRY_DELAY_MS);
+						peer.retry = sSender.schedule(() -> drain(peer), delay, TimeUnit.MILLISECONDS);
+						return;
+					}
+				}
+				mFailed.incrementAndGet();
+				acknowledge(peer, message);
+				mListener.onMessageFailed(peer.friendId, message.id, reason);
+				continue;
+			} catch (RuntimeException e) {
+				// Sending again would fail the same way and hold up the queue, also after a restart.
+				mFailed.incrementAndGet();
+				acknowledge(peer, message);
+				mListener.onMessageFailed(peer.friendId, message.id, "sendFriendMessage error: " + e.getMessage());
+				continue;
+			}
+
+			mSent.incrementAndGet();
+			acknowledge(peer, message);
+			mListener.onMessageSent(peer.friendId, message.id, message.text, isOffline);
+		}
+		scheduleDrain(peer, 0);
+	}
+
+	private void acknowledge(Peer peer, Message message) {
+		synchronized (peer) {
+			if (peer.messages.peek() != message) {
+				return;
+			}
+			peer.messages.poll();
+			try {
+				if (peer.messages.isEmpty()) {
+					closeOutput(peer);
+					peer.file.delete();
+					peer.acks = 0;
+				} else if (peer.acks + 1 >= COMPACT_ACKS) {
+					rewrite(peer);
+				} else {
+					append(peer, encodeRecord(RECORD_ACK, message.id, new byte[0]));
+					peer.acks++;
+				}
+			} catch (IOException e) {
+				// Worst case the message is sent once more after a restart.
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Called with the peer lock held.
+	private void append(Peer peer, byte[] record) throws IOException {
+		if (peer.output == null) {
+			if (!mDir.exists() && !mDir.mkdirs()) {
+				throw new IOException("Cannot create " + mDir);
+			}
+			peer.output = new FileOutputStream(peer.file, true);
+		}
+		peer.output.write(record);
+	}
+
+	// Called with the peer lock held.
+	private void closeOutput(Peer peer) {
+		if (peer.output != null) {
+			try {
+				peer.output.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			peer.output = null;
+		}
+	}
+
+	/**
+	 * Replace the file of a peer with one holding only its queued messages.
+	 * Called with the peer lock held.
+	 */
+	private void rewrite(Peer peer) throws IOException {
+		closeOutput(peer);
+		File temp = new File(peer.file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			for (Message message : peer.messages) {
+				buffer.write(encodeRecord(RECORD_ADD, message.id, message.text.getBytes(StandardCharsets.UTF_8)));
+			}
+			out.write(buffer.toByteArray());
+			out.getFD().sync();
+		}
+		if (!temp.renameTo(peer.file)) {
+			throw new IOException("Cannot replace " + peer.file);
+		}
+		peer.acks = 0;
+	}
+
+	/**
+	 * Replay the records of a peer's file. Reading stops at the first damaged
+	 * record, which can only be a torn tail.
+	 */
+	private void read(Peer peer) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(peer.file)))) {
+			while (true) {
+				byte type;
+				long id;
+				byte[] data;
+				int crc;
+				try {
+					type = in.readByte();
+					id = in.readLong();
+					int length = in.readInt();
+					if (length < 0 || length > in.available()) {
+						break;
+					}
+					data = new byte[length];
+					in.readFully(data);
+					crc = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (crc != recordCrc(type, id, data)) {
+					break;
+				}
+
+				if (type == RECORD_ADD) {
+					peer.messages.add(new Message(id, new String(data, StandardCharsets.UTF_8)));
+				} else if (type == RECORD_ACK) {
+					peer.messages.removeIf(message -> message.id == id);
+				}
+				if (id >= mNextId.get()) {
+					mNextId.set(id + 1);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static byte[] encodeRecord(byte type, long id, byte[] data) {
+		byte[] record = new byte[1 + 8 + 4 + data.length + 4];
+		record[0] = type;
+		putLong(record, 1, id);
+		putInt(record, 9, data.length);
+		System.arraycopy(data, 0, record, 13, data.length);
+		putInt(record, 13 + data.length, recordCrc(type, id, data));
+		return record;
+	}
+
+	private static void putLong(byte[] buffer, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			buffer[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private static int recordCrc(byte type, long id, byte[] data) {
+		byte[] header = new byte[9];
+		header[0] = type;
+		putLong(header, 1, id);
+		CRC32 crc = new CRC32();
+		crc.update(header);
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	JSONObject getStatsJson() throws JSONException {
+		JSONObject friends = new JSONObject();
+		int queued = 0;
+		for (Peer peer : mPeers.values()) {
+			synchronized (peer) {
+				if (peer.messages.isEmpty()) {
+					continue;
+				}
+				Message head = peer.messages.peek();
+				JSONObject f = new JSONObject();
+				f.put("queued", peer.messages.size());
+				f.put("attempts", head.attempts);
+				f.put("waiting", peer.retry != null);
+				friends.put(peer.friendId, f);
+				queued += peer.messages.size();
+			}
+		}
+
+		JSONObject r = new JSONObject();
+		r.put("queued", queued);
+		r.put("sent", mSent.get());
+		r.put("failed", mFailed.get());
+		r.put("retries", mRetries.get());
+		r.put("friends", friends);
+		return r;
+	}
+}
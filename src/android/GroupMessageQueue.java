@@ -0,0 +1,270 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.apache.cordova.CallbackContext;
+import org.elastos.carrier.Group;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound queue of a group, sent in the background at a limited rate.
+ *
+ * Group.sendMessage fans a message out to every peer and blocks while doing
+ * so, which in large groups turns a burst of messages into a long stall. Sends
+ * are queued instead and drained in batches of up to batchSize messages, paced
+ * by a token bucket of messagesPerSecond. Messages are encoded, compressed
+ * if the group has it on, by the sender thread right before they go out. Each
+ * JS callback completes once its message was handed to the group, or with an
+ * error if the queue was full, the message waited longer than ttlMs or the
+ * group went away.
+ */
+class GroupMessageQueue {
+	private static String TAG = "GroupMessageQueue";
+
+	private static final int DEFAULT_MAX_DEPTH = 256;
+	private static final int DEFAULT_BATCH_SIZE = 8;
+
+	private static final ScheduledExecutorService sSender = Executors.newScheduledThreadPool(2, new DaemonThreadFactory(TAG));
+
+	interface Encoder {
+		byte[] encodeMessage(byte[] message);
+	}
+
+	private static class Entry {
+		final byte[] data;
+		final CallbackContext callbackContext;
+		final long queuedAt;
+
+		Entry(byte[] data, CallbackContext callbackContext, long queuedAt) {
+			this.data = data;
+			this.callbackContext = callbackContext;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private final Group mGroup;
+	private final Encoder mEncoder;
+	private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+	private long mQueuedBytes = 0;
+	private boolean mDraining = false;
+	private boolean mClosed = false;
+
+	private int mMaxDepth = DEFAULT_MAX_DEPTH;
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	// Messages per second, 0 for no limit.
+	private double mRate = 0;
+	// How long a message may wait, 0 for no limit.
+	private long mTtlMs = 0;
+	private double mTokens = DEFAULT_BATCH_SIZE;
+	private long mLastNanos = System.nanoTime();
+
+	private long mSent = 0;
+	private long mFailed = 0;
+	private long mDropped = 0;
+	private long mExpired = 0;
+	private long mBatches = 0;
+	private long mMaxWaitMs = 0;
+
+	GroupMessageQueue(Group group, Encoder encoder) {
+		this.mGroup = group;
+		this.mEncoder = encoder;
+	}
+
+	/**
+	 * Apply the settings of a setGroupMessageQueue config, keeping what is
+	 * already queued. Missing fields fall back to the defaults.
+	 */
+	synchronized void configure(JSONObject config) {
+		if (config == null) {
+			config = new JSONObject();
+		}
+		mMaxDepth = Math.max(config.optInt("maxDepth", DEFAULT_MAX_DEPTH), 1);
+		mBatchSize = Math.max(config.optInt("batchSize", DEFAULT_BATCH_SIZE), 1);
+		mRate = Math.max(config.optDouble("messagesPerSecond", 0), 0);
+		mTtlMs = Math.max(config.optLong("ttlMs", 0), 0);
+		mTokens = Math.min(mTokens, mBatchSize);
+	}
+
+	/**
+	 * Queue a message. The callback is completed when the message has been
+	 * sent, or right away if the queue is full or closed.
+	 */
+	void send(byte[] data, CallbackContext callbackContext) {
+		synchronized (this) {
+			if (mClosed) {
+				callbackContext.error("Group closed!");
+				return;
+			}
+			if (mEntries.size() >= mMaxDepth) {
+				mDropped++;
+				callbackContext.error("Group message queue full!");
+				return;
+			}
+			mEntries.add(new Entry(data, callbackContext, System.currentTimeMillis()));
+			mQueuedBytes += data.length;
+		}
+		scheduleDrain(0);
+	}
+
+	/**
+	 * Fail everything still queued, used when the group is left.
+	 */
+	void close() {
+		ArrayDeque<Entry> dropped;
+		synchronized (this) {
+			mClosed = true;
+			dropped = new ArrayDeque<>(mEntries);
+			mEntries.clear();
+			mQueuedBytes = 0;
+		}
+		for (Entry entry : dropped) {
+			entry.callbackContext.error("Group closed!");
+		}
+	}
+
+	private void scheduleDrain(long delayMs) {
+		synchronized (this) {
+			if (mDraining || mClosed) {
+				return;
+			}
+			mDraining = true;
+		}
+		sSender.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Take the messages the rate allows now. Returns null and the delay until
+	 * the next token in delayMs[0] when there is nothing to send yet.
+	 */
+	private synchronized ArrayDeque<Entry> takeBatch(long[] delayMs) {
+		if (mEntries.isEmpty() || mClosed) {
+			mDraining = false;
+			return null;
+		}
+
+		int count = Math.min(mBatchSize, mEntries.size());
+		if (mRate > 0) {
+			long now = System.nanoTime();
+			mTokens = Math.min(mTokens + (now - mLastNanos) * mRate / 1e9, mBatchSize);
+			mLastNanos = now;
+			if (mTokens < 1) {
+				delayMs[0] = Math.max((long) Math.ceil((1 - mTokens) * 1000 / mRate), 1);
+				return null;
+			}
+			count = Math.min(count, (int) mTokens);
+			mTokens -= count;
+		}
+
+		ArrayDeque<Entry> batch = new ArrayDeque<>(count);
+		for (int i = 0; i < count; i++) {
+			Entry entry = mEntries.poll();
+			mQueuedBytes -= entry.data.length;
+			batch.add(entry);
+		}
+		mBatches++;
+		return batch;
+	}
+
+	private void drain() {
+		long[] delayMs = new long[1];
+		boolean finished = false;
+		try {
+			ArrayDeque<Entry> batch;
+			while ((batch = takeBatch(delayMs)) != null) {
+				for (Entry entry : batch) {
+					sendEntry(entry);
+				}
+			}
+			finished = true;
+		} finally {
+			if (!finished) {
+				// Left by an exception: clear the flag or the queue stops for good.
+				synchronized (this) {
+					mDraining = false;
+				}
+				scheduleDrain(0);
+			}
+		}
+		if (delayMs[0] > 0) {
+			// Still draining, so new sends do not cut the wait short.
+			sSender.schedule(this::drain, delayMs[0], TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void sendEntry(Entry entry) {
+		long waitMs = System.currentTimeMillis() - entry.queuedAt;
+		if (mTtlMs > 0 && waitMs > mTtlMs) {
+			synchronized (this) {
+				mExpired++;
+			}
+			entry.callbackContext.error("Group message expired!");
+			return;
+		}
+
+		try {
+			mGroup.sendMessage(mEncoder.encodeMessage(entry.data));
+		} catch (CarrierException e) {
+			synchronized (this) {
+				mFailed++;
+			}
+			entry.callbackContext.error(String.format("sendGroupMessage error (0x%x)", e.getErrorCode()));
+			return;
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				mFailed++;
+			}
+			entry.callbackContext.error("sendGroupMessage error: " + e.getMessage());
+			return;
+		}
+		synchronized (this) {
+			mSent++;
+			mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+		}
+		entry.callbackContext.success("Success!");
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("depth", mEntries.size());
+		r.put("queuedBytes", mQueuedBytes);
+		r.put("maxDepth", mMaxDepth);
+		r.put("batchSize", mBatchSize);
+		r.put("messagesPerSecond", mRate);
+		r.put("ttlMs", mTtlMs);
+		r.put("sent", mSent);
+		r.put("batches", mBatches);
+		r.put("failed", mFailed);
+		r.put("dropped", mDropped);
+		r.put("expired", mExpired);
+		r.put("maxWaitMs", mMaxWaitMs);
+		return r;
+	}
+}
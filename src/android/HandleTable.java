@@ -0,0 +1,217 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free table of native objects addressed by int handles.
+ *
+ * A handle packs a slot index in its low 16 bits and the slot's generation in
+ * the bits above. Slots are reused through a free list, but every reuse bumps
+ * the generation, so a stale handle never resolves to the object that took its
+ * slot. Handles are always positive and never 0.
+ *
+ * Lookups are a masked array read plus a handle compare; slots live in lazily
+ * allocated segments so an idle table stays small.
+ */
+class HandleTable<T> {
+	private static String TAG = "HandleTable";
+
+	private static final int INDEX_BITS = 16;
+	private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+	private static final int GENERATION_MASK = 0x7fff;
+
+	private static final int SEGMENT_BITS = 8;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private static final int SEGMENT_COUNT = (INDEX_MASK + 1) >>> SEGMENT_BITS;
+
+	private static final int NO_INDEX = -1;
+
+	interface Visitor<T> {
+		void visit(int handle, T value);
+	}
+
+	private static final class Slot<T> {
+		final int handle;
+		final T value;
+
+		Slot(int handle, T value) {
+			this.handle = handle;
+			this.value = value;
+		}
+	}
+
+	private static final class Segment<T> {
+		final AtomicReferenceArray<Slot<T>> slots = new AtomicReferenceArray<>(SEGMENT_SIZE);
+		final AtomicIntegerArray generations = new AtomicIntegerArray(SEGMENT_SIZE);
+		final AtomicIntegerArray nextFree = new AtomicIntegerArray(SEGMENT_SIZE);
+	}
+
+	private final AtomicReferenceArray<Segment<T>> mSegments = new AtomicReferenceArray<>(SEGMENT_COUNT);
+	// Next never used slot index; grows monotonically.
+	private final AtomicInteger mNextIndex = new AtomicInteger(0);
+	// Free list head: ABA tag in the high 32 bits, slot index + 1 in the low 32 bits.
+	private final AtomicLong mFreeHead = new AtomicLong(0);
+	private final AtomicInteger mSize = new AtomicInteger(0);
+
+	/**
+	 * Store a value and return its new handle.
+	 *
+	 * @throws IllegalStateException if all 65536 slots are in use.
+	 */
+	int add(T value) {
+		int index = popFree();
+		if (index == NO_INDEX) {
+			index = mNextIndex.getAndIncrement();
+			if (index > INDEX_MASK) {
+				mNextIndex.decrementAndGet();
+				throw new IllegalStateException("Handle table full");
+			}
+		}
+
+		Segment<T> segment = getSegment(index, true);
+		int offset = index & SEGMENT_MASK;
+		int generation;
+		do {
+			generation = segment.generations.incrementAndGet(offset) & GENERATION_MASK;
+		} while (generation == 0);
+
+		int handle = (generation << INDEX_BITS) | index;
+		segment.slots.set(offset, new Slot<>(handle, value));
+		mSize.incrementAndGet();
+		return handle;
+	}
+
+	T get(int handle) {
+		Slot<T> slot = getSlot(handle);
+		return (slot != null) ? slot.value : null;
+	}
+
+	/**
+	 * Remove a value and return it, or null if the handle is stale or unknown.
+	 * The slot becomes reusable under a new generation.
+	 */
+	T remove(int handle) {
+		Slot<T> slot = getSlot(handle);
+		if (slot == null) {
+			return null;
+		}
+		int index = handle & INDEX_MASK;
+		Segment<T> segment = getSegment(index, false);
+		if (!segment.slots.compareAndSet(index & SEGMENT_MASK, slot, null)) {
+			return null;
+		}
+		mSize.decrementAndGet();
+		pushFree(index);
+		return slot.value;
+	}
+
+	int size() {
+		return mSize.get();
+	}
+
+	/**
+	 * Visit a snapshot of the live entries. Entries added or removed during the
+	 * walk may or may not be seen.
+	 */
+	void forEach(Visitor<T> visitor) {
+		int limit = Math.min(mNextIndex.get(), INDEX_MASK + 1);
+		for (int index = 0; index < limit; index++) {
+			Segment<T> segment = getSegment(index, false);
+			if (segment == null) {
+				index |= SEGMENT_MASK;
+				continue;
+			}
+			Slot<T> slot = segment.slots.get(index & SEGMENT_MASK);
+			if (slot != null) {
+				visitor.visit(slot.handle, slot.value);
+			}
+		}
+	}
+
+	/**
+	 * Remove every entry, visiting each removed value.
+	 */
+	void clear(Visitor<T> visitor) {
+		forEach((handle, value) -> {
+			if (remove(handle) != null && visitor != null) {
+				visitor.visit(handle, value);
+			}
+		});
+	}
+
+	private Slot<T> getSlot(int handle) {
+		if (handle <= 0) {
+			return null;
+		}
+		int index = handle & INDEX_MASK;
+		Segment<T> segment = getSegment(index, false);
+		if (segment == null) {
+			return null;
+		}
+		Slot<T> slot = segment.slots.get(index & SEGMENT_MASK);
+		return (slot != null && slot.handle == handle) ? slot : null;
+	}
+
+	private Segment<T> getSegment(int index, boolean create) {
+		int segmentIndex = index >>> SEGMENT_BITS;
+		Segment<T> segment = mSegments.get(segmentIndex);
+		if (segment == null && create) {
+			mSegments.compareAndSet(segmentIndex, null, new Segment<>());
+			segment = mSegments.get(segmentIndex);
+		}
+		return segment;
+	}
+
+	private void pushFree(int index) {
+		Segment<T> segment = getSegment(index, false);
+		while (true) {
+			long head = mFreeHead.get();
+			segment.nextFree.set(index & SEGMENT_MASK, (int) head);
+			long next = ((head >>> 32) + 1) << 32 | (index + 1);
+			if (mFreeHead.compareAndSet(head, next)) {
+				return;
+			}
+		}
+	}
+
+	private int popFree() {
+		while (true) {
+			long head = mFreeHead.get();
+			int index = (int) head - 1;
+			if (index == NO_INDEX) {
+				return NO_INDEX;
+			}
+			int nextFree = getSegment(index, false).nextFree.get(index & SEGMENT_MASK);
+			long next = ((head >>> 32) + 1) << 32 | (nextFree & 0xffffffffL);
+			if (mFreeHead.compareAndSet(head, next)) {
+				return index;
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of friend and group messages with a preset dictionary
+ * of common JSON and chat tokens.
+ *
+ * A compressed message is a binary frame of FRAME_MARKER, FRAME_COMPRESSED,
+ * the dictionary id and the raw deflate data. Messages to a friend are only
+ * compressed once it announced CAPS_DEFLATE, see PeerCapabilities. Groups
+ * cannot negotiate, their compression is turned on per group by the
+ * application. Received frames are always understood.
+ */
+class MessageCompressor {
+	private static String TAG = "MessageCompressor";
+
+	static final byte FRAME_COMPRESSED = 0x02;
+	private static final byte DICTIONARY_ID = 0x01;
+	private static final int HEADER_SIZE = 3;
+	// Smaller payloads rarely shrink enough to pay for the header.
+	private static final int MIN_SIZE = 48;
+
+	// Most frequent tokens last, deflate reaches them with the shortest distances.
+	private static final byte[] DICTIONARY = ("false,null,0,1,2,3,4,5,6,7,8,9,10,100,"
+			+ "https://,http://,.com,.png,.jpg,image/,text/plain,application/json,"
+			+ "\"error\":\"\"message\":\"\"code\":\"result\":\"ok\",\"success\":true,"
+			+ "\"version\":\"\"action\":\"\"command\":\"\"request\":\"\"response\":\"\"payload\":{"
+			+ "\"data\":{\"status\":\"\"state\":\"\"name\":\"\"title\":\"\"url\":\"\"size\":"
+			+ "\"userId\":\"\"sender\":\"\"receiver\":\"\"from\":\"\"to\":\"\"peer\":\"\"nickname\":\"\"avatar\":\""
+			+ "\"created\":\"createdAt\":\"updatedAt\":\"time\":\"date\":\"seq\":"
+			+ "\"messageId\":\"\"msgId\":\"\"uuid\":\"\"id\":\"\"reply\":\"\"read\":true,\"delivered\":true,"
+			+ "\"content\":\"\"body\":\"\"text\":\"\"type\":\"text\",\"type\":\"message\",\"type\":\""
+			+ "\"timestamp\":").getBytes(StandardCharsets.UTF_8);
+
+	private volatile boolean mEnabled = false;
+	private final PeerCapabilities mPeers;
+
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+	private final Inflater mInflater = new Inflater(true);
+	private final byte[] mBuffer = new byte[4096];
+
+	private long mCompressed = 0;
+	private long mSkipped = 0;
+	private long mOriginalBytes = 0;
+	private long mCompressedBytes = 0;
+	private long mDecompressed = 0;
+	private long mErrors = 0;
+
+	MessageCompressor(PeerCapabilities peers) {
+		this.mPeers = peers;
+	}
+
+	void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	boolean isEnabled() {
+		return mEnabled;
+	}
+
+	static boolean isCompressed(byte[] data) {
+		return data.length >= HEADER_SIZE && data[0] == MessageFragmenter.FRAME_MARKER && data[1] == FRAME_COMPRESSED;
+	}
+
+	/**
+	 * Compress a message to a friend if it announced support.
+	 */
+	byte[] encodeFriendMessage(String to, byte[] data) {
+		if (!mEnabled || !mPeers.has(to, PeerCapabilities.CAPS_DEFLATE)) {
+			return data;
+		}
+		return compress(data);
+	}
+
+	/**
+	 * Compress a message if that makes it smaller, otherwise return it as it is.
+	 */
+	synchronized byte[] compress(byte[] data) {
+		if (data.length < MIN_SIZE) {
+			mSkipped++;
+			return data;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+		out.write(MessageFragmenter.FRAME_MARKER);
+		out.write(FRAME_COMPRESSED);
+		out.write(DICTIONARY_ID);
+		mDeflater.reset();
+		mDeflater.setDictionary(DICTIONARY);
+		mDeflater.setInput(data);
+		mDeflater.finish();
+		while (!mDeflater.finished()) {
+			int length = mDeflater.deflate(mBuffer);
+			out.write(mBuffer, 0, length);
+			if (out.size() >= data.length) {
+				mSkipped++;
+				return data;
+			}
+		}
+
+		mCompressed++;
+		mOriginalBytes += data.length;
+		mCompressedBytes += out.size();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Undo compress. Returns other messages as they are, or null if a
+	 * compressed frame is damaged, uses an unknown dictionary or expands
+	 * beyond the message size limit.
+	 */
+	synchronized byte[] decode(byte[] data) {
+		if (!isCompressed(data)) {
+			return data;
+		}
+		if (data[2] != DICTIONARY_ID) {
+			mErrors++;
+			return null;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		mInflater.reset();
+		mInflater.setDictionary(DICTIONARY);
+		mInflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+		try {
+			while (!mInflater.finished()) {
+				int length = mInflater.inflate(mBuffer);
+				if (length == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+					mErrors++;
+					return null;
+				}
+				out.write(mBuffer, 0, length);
+				if (out.size() > MessageFragmenter.MAX_MESSAGE_SIZE) {
+					mErrors++;
+					return null;
+				}
+			}
+		} catch (DataFormatException e) {
+			mErrors++;
+			return null;
+		}
+		mDecompressed++;
+		return out.toByteArray();
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("enabled", mEnabled);
+		r.put("capablePeers", mPeers.count(PeerCapabilities.CAPS_DEFLATE));
+		r.put("compressed", mCompressed);
+		r.put("skipped", mSkipped);
+		r.put("originalBytes", mOriginalBytes);
+		r.put("compressedBytes", mCompressedBytes);
+		r.put("ratio", (mOriginalBytes > 0) ? (double) mCompressedBytes / mOriginalBytes : 1.0);
+		r.put("decompressed", mDecompressed);
+		r.put("errors", mErrors);
+		return r;
+	}
+}
@@ -0,0 +1,174 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Drops received messages already seen within a time window.
+ *
+ * Messages are keyed by a 64 bit hash of the sender and either the whole
+ * payload or, with keyField, the value of that field of a JSON payload. Keys
+ * go into two generations of open addressing hash sets of fixed size; the
+ * current generation becomes the previous one every half window or when it
+ * fills up, so a key is remembered for at least half and at most a whole
+ * window and memory never grows past the two tables.
+ */
+class MessageDeduplicator {
+	private static String TAG = "MessageDeduplicator";
+
+	private static final long DEFAULT_WINDOW_MS = 10 * 60 * 1000;
+	private static final int DEFAULT_MAX_ENTRIES = 8192;
+
+	private final long mWindowMs;
+	private final int mMaxEntries;
+	private final String mKeyField;
+
+	// Zero marks a free slot, keys are never zero.
+	private long[] mCurrent;
+	private long[] mPrevious;
+	private int mCurrentSize = 0;
+	private long mRotatedAt = System.currentTimeMillis();
+
+	private long mChecked = 0;
+	private long mSuppressed = 0;
+
+	private MessageDeduplicator(long windowMs, int maxEntries, String keyField) {
+		this.mWindowMs = windowMs;
+		this.mMaxEntries = maxEntries;
+		this.mKeyField = keyField;
+		// At most half full, so probes stay short.
+		int capacity = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+		this.mCurrent = new long[capacity];
+		this.mPrevious = new long[capacity];
+	}
+
+	/**
+	 * Create a deduplicator from a JS config, or return null to turn it off.
+	 */
+	static MessageDeduplicator fromConfig(JSONObject config) {
+		if (config == null) {
+			return null;
+		}
+		long windowMs = Math.max(config.optLong("windowMs", DEFAULT_WINDOW_MS), 1000);
+		int maxEntries = Math.min(Math.max(config.optInt("maxEntries", DEFAULT_MAX_ENTRIES), 16), 1 << 20);
+		String keyField = config.optString("keyField", null);
+		return new MessageDeduplicator(windowMs, maxEntries, keyField);
+	}
+
+	/**
+	 * Return true if this message was seen in the window, otherwise remember it.
+	 */
+	synchronized boolean isDuplicate(String from, byte[] data) {
+		mChecked++;
+		long now = System.currentTimeMillis();
+		if (now - mRotatedAt >= mWindowMs / 2 || mCurrentSize >= mMaxEntries) {
+			rotate(now);
+		}
+
+		long key = getKey(from, data);
+		if (contains(mCurrent, key) || contains(mPrevious, key)) {
+			mSuppressed++;
+			return true;
+		}
+		insert(mCurrent, key);
+		mCurrentSize++;
+		return false;
+	}
+
+	private void rotate(long now) {
+		long[] table = mPrevious;
+		Arrays.fill(table, 0);
+		mPrevious = mCurrent;
+		mCurrent = table;
+		mCurrentSize = 0;
+		mRotatedAt = now;
+	}
+
+	private long getKey(String from, byte[] data) {
+		long hash = fnv(0xcbf29ce484222325L, from.getBytes(StandardCharsets.UTF_8));
+		hash = fnv(hash ^ 0xff, getKeyBytes(data));
+		// Spread the bits, the low ones pick the slot.
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return (hash == 0) ? 1 : hash;
+	}
+
+	private byte[] getKeyBytes(byte[] data) {
+		if (mKeyField == null || data.length == 0 || data[0] != '{') {
+			return data;
+		}
+		try {
+			JSONObject json = new JSONObject(new String(data, StandardCharsets.UTF_8));
+			if (json.has(mKeyField)) {
+				return json.getString(mKeyField).getBytes(StandardCharsets.UTF_8);
+			}
+		} catch (JSONException e) {
+			// Not JSON after all, key on the whole payload.
+		}
+		return data;
+	}
+
+	private static long fnv(long hash, byte[] bytes) {
+		for (byte b : bytes) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static boolean contains(long[] table, long key) {
+		int mask = table.length - 1;
+		for (int i = (int) key & mask; table[i] != 0; i = (i + 1) & mask) {
+			if (table[i] == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void insert(long[] table, long key) {
+		int mask = table.length - 1;
+		int i = (int) key & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = key;
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("windowMs", mWindowMs);
+		r.put("maxEntries", mMaxEntries);
+		r.put("entries", mCurrentSize);
+		r.put("checked", mChecked);
+		r.put("suppressed", mSuppressed);
+		return r;
+	}
+}
@@ -0,0 +1,276 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.elastos.carrier.Carrier;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits friend messages larger than one Carrier message into fragments and
+ * puts received fragments back together.
+ *
+ * A fragment is a binary message starting with FRAME_MARKER, which can never
+ * start a UTF-8 text message, followed by the frame type, a message id, the
+ * fragment index and the fragment count. Only friends that announced
+ * CAPS_FRAGMENT get fragments, see PeerCapabilities. Messages that fit are
+ * sent as they are either way, and to other friends a long message goes out
+ * whole, for Carrier to reject as it always did.
+ *
+ * Partial messages are bounded in total size and per peer, and are dropped
+ * once they are older than the timeout, checked as fragments arrive.
+ */
+class MessageFragmenter {
+	private static String TAG = "MessageFragmenter";
+
+	static final byte FRAME_MARKER = (byte) 0xFF;
+	static final byte FRAME_FRAGMENT = 0x01;
+
+	// The size of one Carrier friend message.
+	static final int MAX_FRAME_SIZE = 1024;
+	private static final int HEADER_SIZE = 10;
+	private static final int MAX_PAYLOAD_SIZE = MAX_FRAME_SIZE - HEADER_SIZE;
+	static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+	private static final long DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+	private static final int DEFAULT_MAX_PENDING_PER_PEER = 8;
+	private static final long DEFAULT_TIMEOUT_MS = 60 * 1000;
+
+	private static final AtomicInteger sNextId = new AtomicInteger(new Random().nextInt());
+
+	private static class Partial {
+		final String from;
+		final byte[][] parts;
+		final long startedAt = System.currentTimeMillis();
+		int received = 0;
+		int bytes = 0;
+
+		Partial(String from, int count) {
+			this.from = from;
+			this.parts = new byte[count][];
+		}
+	}
+
+	// Keyed by sender and message id, oldest first.
+	private final Map<String, Partial> mPartials = new LinkedHashMap<>();
+	private long mPendingBytes = 0;
+	private final long mMaxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+	private final int mMaxPendingPerPeer = DEFAULT_MAX_PENDING_PER_PEER;
+	private final long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+	private long mReassembled = 0;
+	private long mFragments = 0;
+	private long mExpired = 0;
+	private long mDropped = 0;
+
+	/**
+	 * Whether a message sent as it is would be taken for a fragment. Other
+	 * frames, like compressed ones, fit as they are.
+	 */
+	private static boolean looksLikeFragment(byte[] message) {
+		return message.length >= 2 && message[0] == FRAME_MARKER && message[1] == FRAME_FRAGMENT;
+	}
+
+	/**
+	 * Split a message into frames that each fit into one Carrier message.
+	 */
+	static List<byte[]> split(byte[] message) {
+		if (message.length <= MAX_FRAME_SIZE && !looksLikeFragment(message)) {
+			return Collections.singletonList(message);
+		}
+
+		int count = (message.length + MAX_PAYLOAD_SIZE - 1) / MAX_PAYLOAD_SIZE;
+		int id = sNextId.getAndIncrement();
+		List<byte[]> frames = new ArrayList<>(count);
+		for (int index = 0; index < count; index++) {
+			int offset = index * MAX_PAYLOAD_SIZE;
+			int length = Math.min(MAX_PAYLOAD_SIZE, message.length - offset);
+			byte[] frame = new byte[HEADER_SIZE + length];
+			frame[0] = FRAME_MARKER;
+			frame[1] = FRAME_FRAGMENT;
+			frame[2] = (byte) (id >>> 24);
+			frame[3] = (byte) (id >>> 16);
+			frame[4] = (byte) (id >>> 8);
+			frame[5] = (byte) id;
+			frame[6] = (byte) (index >>> 8);
+			frame[7] = (byte) index;
+			frame[8] = (byte) (count >>> 8);
+			frame[9] = (byte) count;
+			System.arraycopy(message, offset, frame, HEADER_SIZE, length);
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	/**
+	 * Send a message of any size up to MAX_MESSAGE_SIZE to a friend that can
+	 * reassemble it. Returns whether any part went out as offline message.
+	 */
+	static boolean send(Carrier carrier, PeerCapabilities peers, String to, byte[] message) throws CarrierException {
+		if (message.length > MAX_MESSAGE_SIZE) {
+			throw new IllegalArgumentException("Message too long");
+		}
+		if (!peers.has(to, PeerCapabilities.CAPS_FRAGMENT)) {
+			if (message.length > MAX_FRAME_SIZE) {
+				// Ask once, so that the next long message can be split.
+				peers.probe(carrier, to, PeerCapabilities.CAPS_FRAGMENT);
+			}
+			return carrier.sendFriendMessage(to, message);
+		}
+		boolean isOffline = false;
+		for (byte[] frame : split(message)) {
+			isOffline |= carrier.sendFriendMessage(to, frame);
+		}
+		return isOffline;
+	}
+
+	/**
+	 * Take a received message. Returns the message itself if it is not a
+	 * fragment, the whole message once its last fragment arrived, or null
+	 * while parts are missing.
+	 */
+	synchronized byte[] onFrame(String from, byte[] data) {
+		if (data.length < HEADER_SIZE || data[0] != FRAME_MARKER || data[1] != FRAME_FRAGMENT) {
+			return data;
+		}
+		mFragments++;
+		expire();
+
+		int id = ((data[2] & 0xff) << 24) | ((data[3] & 0xff) << 16) | ((data[4] & 0xff) << 8) | (data[5] & 0xff);
+		int index = ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+		int count = ((data[8] & 0xff) << 8) | (data[9] & 0xff);
+		if (count == 0 || index >= count || (long) count * MAX_PAYLOAD_SIZE > MAX_MESSAGE_SIZE + MAX_PAYLOAD_SIZE) {
+			mDropped++;
+			return null;
+		}
+
+		String key = from + "/" + id;
+		Partial partial = mPartials.get(key);
+		if (partial != null && partial.parts.length != count) {
+			// Same id from an earlier run of the sender, start over.
+			remove(key, partial);
+			partial = null;
+		}
+		if (partial == null) {
+			partial = new Partial(from, count);
+			mPartials.put(key, partial);
+			limitPeer(from);
+		}
+		if (partial.parts[index] == null) {
+			int length = data.length - HEADER_SIZE;
+			byte[] part = new byte[length];
+			System.arraycopy(data, HEADER_SIZE, part, 0, length);
+			partial.parts[index] = part;
+			partial.received++;
+			partial.bytes += length;
+			mPendingBytes += length;
+		}
+
+		if (partial.received == count) {
+			remove(key, partial);
+			mReassembled++;
+			byte[] message = new byte[partial.bytes];
+			int offset = 0;
+			for (byte[] part : partial.parts) {
+				System.arraycopy(part, 0, message, offset, part.length);
+				offset += part.length;
+			}
+			return message;
+		}
+
+		limitBytes();
+		return null;
+	}
+
+	private void remove(String key, Partial partial) {
+		mPartials.remove(key);
+		mPendingBytes -= partial.bytes;
+	}
+
+	private void expire() {
+		long oldest = System.currentTimeMillis() - mTimeoutMs;
+		Iterator<Partial> it = mPartials.values().iterator();
+		while (it.hasNext()) {
+			Partial partial = it.next();
+			if (partial.startedAt >= oldest) {
+				break;
+			}
+			it.remove();
+			mPendingBytes -= partial.bytes;
+			mExpired++;
+		}
+	}
+
+	// Keep at most mMaxPendingPerPeer partial messages of one sender.
+	private void limitPeer(String from) {
+		int pending = 0;
+		for (Partial partial : mPartials.values()) {
+			if (partial.from.equals(from)) {
+				pending++;
+			}
+		}
+		Iterator<Partial> it = mPartials.values().iterator();
+		while (pending > mMaxPendingPerPeer && it.hasNext()) {
+			Partial partial = it.next();
+			if (partial.from.equals(from)) {
+				it.remove();
+				mPendingBytes -= partial.bytes;
+				mDropped++;
+				pending--;
+			}
+		}
+	}
+
+	// Drop the oldest partial messages while the total is over the limit.
+	private void limitBytes() {
+		Iterator<Partial> it = mPartials.values().iterator();
+		while (mPendingBytes > mMaxPendingBytes && it.hasNext()) {
+			Partial partial = it.next();
+			it.remove();
+			mPendingBytes -= partial.bytes;
+			mDropped++;
+		}
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("pending", mPartials.size());
+		r.put("pendingBytes", mPendingBytes);
+		r.put("fragments", mFragments);
+		r.put("reassembled", mReassembled);
+		r.put("expired", mExpired);
+		r.put("dropped", mDropped);
+		return r;
+	}
+}
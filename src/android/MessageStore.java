@@ -0,0 +1,402 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent history of friend messages.
+ *
+ * Messages are appended to one log, messages.log, and the offset of a record
+ * is the id of the message. Each peer has an index file of fixed size
+ * (timestamp, offset) entries that is memory mapped, so a page of history is
+ * a binary search plus one positional read per message, whatever the size of
+ * the log. Timestamps never go backwards, which keeps every index sorted by
+ * both time and id.
+ *
+ * store.state records how far the log is indexed. Records behind it that
+ * check out are indexed again on open, a torn record ends the log.
+ */
+class MessageStore {
+	private static String TAG = "MessageStore";
+
+	static final int FLAG_OUTBOUND = 1;
+	static final int FLAG_OFFLINE = 2;
+
+	private static final int STATE_MAGIC = 0x434d5331;
+	private static final int INDEX_MAGIC = 0x434d4931;
+	private static final int STATE_SIZE = 24;
+	private static final int INDEX_HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 16;
+	private static final int MIN_CAPACITY = 4096;
+	// Record header: length and CRC32 of the rest of the record.
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 2 * 1024 * 1024;
+	private static final int MAX_OPEN_INDEXES = 32;
+	private static final int MAX_PAGE_SIZE = 500;
+
+	private static class PeerIndex {
+		final RandomAccessFile file;
+		MappedByteBuffer map;
+		long capacity;
+		long count;
+
+		PeerIndex(File path) throws IOException {
+			file = new RandomAccessFile(path, "rw");
+			if (file.length() < INDEX_HEADER_SIZE) {
+				file.setLength(0);
+				file.writeInt(INDEX_MAGIC);
+				file.writeInt(0);
+				file.writeLong(0);
+			}
+			file.seek(0);
+			if (file.readInt() != INDEX_MAGIC) {
+				throw new IOException("Bad index " + path);
+			}
+			file.readInt();
+			long entries = (file.length() - INDEX_HEADER_SIZE) / ENTRY_SIZE;
+			count = Math.min(Math.max(file.readLong(), 0), entries);
+			map(Math.max(count * 2, MIN_CAPACITY));
+		}
+
+		private void map(long capacity) throws IOException {
+			this.capacity = capacity;
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + capacity * ENTRY_SIZE);
+		}
+
+		void add(long timestamp, long offset) throws IOException {
+			if (count == capacity) {
+				map(capacity * 2);
+			}
+			int position = (int) (INDEX_HEADER_SIZE + count * ENTRY_SIZE);
+			map.putLong(position, timestamp);
+			map.putLong(position + 8, offset);
+			count++;
+			// The count goes last, a torn entry is never counted.
+			map.putLong(8, count);
+		}
+
+		long getTimestamp(long i) {
+			return map.getLong((int) (INDEX_HEADER_SIZE + i * ENTRY_SIZE));
+		}
+
+		long getOffset(long i) {
+			return map.getLong((int) (INDEX_HEADER_SIZE + i * ENTRY_SIZE + 8));
+		}
+
+		long getLastOffset() {
+			return (count > 0) ? getOffset(count - 1) : -1;
+		}
+
+		// The first entry with an offset >= id.
+		long lowerBound(long id) {
+			long low = 0;
+			long high = count;
+			while (low < high) {
+				long mid = (low + high) >>> 1;
+				if (getOffset(mid) < id) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private final File mDir;
+	private final RandomAccessFile mLogFile;
+	private final FileChannel mLog;
+	private final MappedByteBuffer mState;
+	private long mLogEnd = 0;
+	private long mLastTimestamp = 0;
+	private long mAppended = 0;
+
+	// Open indexes, least recently used first.
+	private final Map<String, PeerIndex> mIndexes = new LinkedHashMap<String, PeerIndex>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PeerIndex> eldest) {
+			if (size() > MAX_OPEN_INDEXES) {
+				eldest.getValue().close();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private MessageStore(File dir) throws IOException {
+		mDir = dir;
+		mLogFile = new RandomAccessFile(new File(dir, "messages.log"), "rw");
+		mLog = mLogFile.getChannel();
+		try (RandomAccessFile state = new RandomAccessFile(new File(dir, "store.state"), "rw")) {
+			mState = state.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, STATE_SIZE);
+		}
+	}
+
+	static File getStoreDir(String persistentLocation) {
+		return new File(persistentLocation, "messages");
+	}
+
+	static MessageStore open(File dir) throws IOException {
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		MessageStore store = new MessageStore(dir);
+		store.recover();
+		return store;
+	}
+
+	/**
+	 * Append a message and return its id.
+	 */
+	synchronized long append(String peer, int flags, byte[] data) throws IOException {
+		long timestamp = Math.max(System.currentTimeMillis(), mLastTimestamp);
+		byte[] record = encodeRecord(peer, flags, timestamp, data);
+		long id = mLogEnd;
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining()) {
+			mLog.write(buffer, id + buffer.position());
+		}
+		getIndex(peer, true).add(timestamp, id);
+		mLogEnd += record.length;
+		mLastTimestamp = timestamp;
+		mAppended++;
+		saveState();
+		return id;
+	}
+
+	/**
+	 * Return up to limit messages exchanged with peer. With after, the page
+	 * holds the messages following that id, oldest first; otherwise those
+	 * preceding before (or the latest ones if before is negative), newest first.
+	 */
+	synchronized JSONObject query(String peer, long before, long after, int limit) throws IOException, JSONException {
+		limit = Math.min(Math.max(limit, 1), MAX_PAGE_SIZE);
+		JSONArray messages = new JSONArray();
+		boolean hasMore = false;
+
+		PeerIndex index = getIndex(peer, false);
+		if (index != null) {
+			if (after >= 0) {
+				long i = index.lowerBound(after + 1);
+				long end = Math.min(i + limit, index.count);
+				for (; i < end; i++) {
+					messages.put(readMessage(index.getOffset(i)));
+				}
+				hasMore = end < index.count;
+			} else {
+				long end = (before >= 0) ? index.lowerBound(before) : index.count;
+				long start = Math.max(end - limit, 0);
+				for (long i = end - 1; i >= start; i--) {
+					messages.put(readMessage(index.getOffset(i)));
+				}
+				hasMore = start > 0;
+			}
+		}
+
+		JSONObject r = new JSONObject();
+		r.put("messages", messages);
+		r.put("hasMore", hasMore);
+		return r;
+	}
+
+	synchronized void close() {
+		for (PeerIndex index : mIndexes.values()) {
+			index.close();
+		}
+		mIndexes.clear();
+		try {
+			mLogFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("logBytes", mLogEnd);
+		r.put("appended", mAppended);
+		r.put("openIndexes", mIndexes.size());
+		return r;
+	}
+
+	private PeerIndex getIndex(String peer, boolean create) throws IOException {
+		PeerIndex index = mIndexes.get(peer);
+		if (index == null) {
+			// Peer ids are Base58, but never trust them as path components.
+			File file = new File(mDir, peer.replaceAll("[^A-Za-z0-9_-]", "_") + ".idx");
+			if (!create && !file.exists()) {
+				return null;
+			}
+			index = new PeerIndex(file);
+			mIndexes.put(peer, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Index whatever the log holds beyond the indexed end and cut off a torn tail.
+	 */
+	private void recover() throws IOException {
+		long position = 0;
+		if (mState.getInt(0) == STATE_MAGIC) {
+			position = mState.getLong(8);
+			mLastTimestamp = mState.getLong(16);
+		}
+		long length = mLog.size();
+		if (position > length) {
+			position = 0;
+		}
+
+		while (position < length) {
+			Record record = readRecord(position, length);
+			if (record == null) {
+				break;
+			}
+			PeerIndex index = getIndex(record.peer, true);
+			if (index.getLastOffset() < position) {
+				index.add(record.timestamp, position);
+			}
+			mLastTimestamp = Math.max(mLastTimestamp, record.timestamp);
+			position += record.size;
+		}
+		if (position < length) {
+			mLog.truncate(position);
+		}
+		mLogEnd = position;
+		saveState();
+	}
+
+	private void saveState() {
+		mState.putInt(0, STATE_MAGIC);
+		mState.putLong(8, mLogEnd);
+		mState.putLong(16, mLastTimestamp);
+	}
+
+	private static class Record {
+		int size;
+		int flags;
+		long timestamp;
+		String peer;
+		byte[] data;
+	}
+
+	private static byte[] encodeRecord(String peer, int flags, long timestamp, byte[] data) {
+		byte[] peerBytes = peer.getBytes(StandardCharsets.UTF_8);
+		int bodySize = 1 + 8 + 2 + peerBytes.length + data.length;
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodySize);
+		buffer.putInt(bodySize);
+		buffer.putInt(0);
+		buffer.put((byte) flags);
+		buffer.putLong(timestamp);
+		buffer.putShort((short) peerBytes.length);
+		buffer.put(peerBytes);
+		buffer.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), RECORD_HEADER_SIZE, bodySize);
+		buffer.putInt(4, (int) crc.getValue());
+		return buffer.array();
+	}
+
+	/**
+	 * Read the record at position, or return null if it is torn or damaged.
+	 */
+	private Record readRecord(long position, long limit) throws IOException {
+		if (position + RECORD_HEADER_SIZE > limit) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(header, position);
+		int bodySize = header.getInt(0);
+		if (bodySize < 11 || bodySize > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + bodySize > limit) {
+			return null;
+		}
+		ByteBuffer body = ByteBuffer.allocate(bodySize);
+		readFully(body, position + RECORD_HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, bodySize);
+		if ((int) crc.getValue() != header.getInt(4)) {
+			return null;
+		}
+
+		Record record = new Record();
+		record.size = RECORD_HEADER_SIZE + bodySize;
+		body.rewind();
+		record.flags = body.get();
+		record.timestamp = body.getLong();
+		int peerLength = body.getShort() & 0xffff;
+		if (peerLength > body.remaining()) {
+			return null;
+		}
+		record.peer = new String(body.array(), body.position(), peerLength, StandardCharsets.UTF_8);
+		body.position(body.position() + peerLength);
+		record.data = new byte[body.remaining()];
+		body.get(record.data);
+		return record;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (mLog.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of log");
+			}
+		}
+	}
+
+	private JSONObject readMessage(long id) throws IOException, JSONException {
+		Record record = readRecord(id, mLogEnd);
+		if (record == null) {
+			throw new IOException("Damaged message " + id);
+		}
+		JSONObject r = new JSONObject();
+		r.put("id", id);
+		r.put("peer", record.peer);
+		r.put("outbound", (record.flags & FLAG_OUTBOUND) != 0);
+		r.put("isOffline", (record.flags & FLAG_OFFLINE) != 0);
+		r.put("timestamp", record.timestamp);
+		r.put("message", new String(record.data, StandardCharsets.UTF_8));
+		return r;
+	}
+}
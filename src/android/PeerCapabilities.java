@@ -0,0 +1,251 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.elastos.carrier.Carrier;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What each friend announced it understands of the binary frames, and what we
+ * announced to it.
+ *
+ * A capabilities frame is FRAME_MARKER, FRAME_CAPS and a bit set. Peers that
+ * do not know the frame, older builds and other platforms alike, receive it as
+ * an ordinary friend message, so a probe goes out at most once per friend and
+ * capability: both sides are kept in caps.json under the carrier persistent
+ * location and survive reconnects and restarts. A probe carries CAPS_QUERY and
+ * is always answered, the answer never is, so two peers cannot ping-pong.
+ */
+class PeerCapabilities {
+	private static String TAG = "PeerCapabilities";
+
+	static final byte FRAME_CAPS = 0x03;
+	static final int CAPS_DEFLATE = 0x01;
+	static final int CAPS_FRAGMENT = 0x02;
+	// Asks the friend to answer with its own capabilities.
+	static final int CAPS_QUERY = 0x80;
+
+	private static class Peer {
+		int announced = 0;
+		int caps = 0;
+	}
+
+	private final Map<String, Peer> mPeers = new HashMap<>();
+	// Friends with a probe on the way, so that two threads never both send one.
+	private final Set<String> mProbing = new HashSet<>();
+	// What we understand: fragments always, deflate while compression is on.
+	private int mLocalCaps = CAPS_FRAGMENT;
+	// Where the state is kept, null to keep it in memory only.
+	private File mFile = null;
+
+	static File getCapsFile(String persistentLocation) {
+		return new File(persistentLocation, "caps.json");
+	}
+
+	static boolean isCaps(byte[] data) {
+		return data.length >= 3 && data[0] == MessageFragmenter.FRAME_MARKER && data[1] == FRAME_CAPS;
+	}
+
+	static byte[] getCapsFrame(int caps) {
+		return new byte[] { MessageFragmenter.FRAME_MARKER, FRAME_CAPS, (byte) caps };
+	}
+
+	/**
+	 * Restore the state of an earlier run from file and keep it there.
+	 */
+	synchronized void load(File file) {
+		mFile = file;
+		mPeers.clear();
+		if (!file.exists()) {
+			return;
+		}
+		try (FileInputStream in = new FileInputStream(file)) {
+			byte[] data = new byte[(int) file.length()];
+			int length = 0;
+			while (length < data.length) {
+				int read = in.read(data, length, data.length - length);
+				if (read < 0) {
+					break;
+				}
+				length += read;
+			}
+			JSONObject json = new JSONObject(new String(data, 0, length, StandardCharsets.UTF_8));
+			Iterator<String> keys = json.keys();
+			while (keys.hasNext()) {
+				String friendId = keys.next();
+				JSONArray entry = json.getJSONArray(friendId);
+				Peer peer = new Peer();
+				peer.announced = entry.getInt(0);
+				peer.caps = entry.getInt(1);
+				mPeers.put(friendId, peer);
+			}
+		} catch (IOException | JSONException e) {
+			// Start over; the worst case is one more probe per friend.
+			e.printStackTrace();
+			mPeers.clear();
+		}
+	}
+
+	synchronized void setLocalCaps(int caps) {
+		mLocalCaps = caps;
+	}
+
+	synchronized int getLocalCaps() {
+		return mLocalCaps;
+	}
+
+	/**
+	 * Ask the friend what it understands, unless it already heard all of caps.
+	 */
+	void probe(Carrier carrier, String friendId, int caps) {
+		synchronized (this) {
+			if (getUnannounced(friendId, caps) == 0 || !mProbing.add(friendId)) {
+				return;
+			}
+		}
+		try {
+			announce(carrier, friendId, true);
+		} finally {
+			synchronized (this) {
+				mProbing.remove(friendId);
+			}
+		}
+	}
+
+	/**
+	 * Tell the friend what we understand, asking for an answer with query.
+	 * Only a frame that went out is recorded, a failed one is tried again on
+	 * the next probe.
+	 */
+	void announce(Carrier carrier, String friendId, boolean query) {
+		int caps = getLocalCaps();
+		try {
+			carrier.sendFriendMessage(friendId, getCapsFrame(query ? caps | CAPS_QUERY : caps));
+			onAnnounced(friendId, caps);
+		} catch (CarrierException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Whether the friend announced all of caps.
+	 */
+	synchronized boolean has(String friendId, int caps) {
+		Peer peer = mPeers.get(friendId);
+		return peer != null && (peer.caps & caps) == caps;
+	}
+
+	/**
+	 * The capabilities of caps that were never announced to the friend.
+	 */
+	synchronized int getUnannounced(String friendId, int caps) {
+		Peer peer = mPeers.get(friendId);
+		return (peer != null) ? caps & ~peer.announced : caps;
+	}
+
+	/**
+	 * A capabilities frame with caps reached the friend.
+	 */
+	synchronized void onAnnounced(String friendId, int caps) {
+		Peer peer = getPeer(friendId);
+		if ((peer.announced | caps) != peer.announced) {
+			peer.announced |= caps;
+			save();
+		}
+	}
+
+	/**
+	 * The friend announced caps, replacing what it announced before.
+	 */
+	synchronized void onCaps(String friendId, int caps) {
+		Peer peer = getPeer(friendId);
+		caps &= ~CAPS_QUERY;
+		if (peer.caps != caps) {
+			peer.caps = caps;
+			save();
+		}
+	}
+
+	synchronized void remove(String friendId) {
+		if (mPeers.remove(friendId) != null) {
+			save();
+		}
+	}
+
+	synchronized int count(int caps) {
+		int count = 0;
+		for (Peer peer : mPeers.values()) {
+			if ((peer.caps & caps) == caps) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private Peer getPeer(String friendId) {
+		Peer peer = mPeers.get(friendId);
+		if (peer == null) {
+			peer = new Peer();
+			mPeers.put(friendId, peer);
+		}
+		return peer;
+	}
+
+	private void save() {
+		if (mFile == null) {
+			return;
+		}
+		File temp = new File(mFile.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			JSONObject json = new JSONObject();
+			for (Map.Entry<String, Peer> entry : mPeers.entrySet()) {
+				JSONArray value = new JSONArray();
+				value.put(entry.getValue().announced);
+				value.put(entry.getValue().caps);
+				json.put(entry.getKey(), value);
+			}
+			out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} catch (IOException | JSONException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (!temp.renameTo(mFile)) {
+			temp.delete();
+		}
+	}
+}
@@ -33,20 +33,32 @@
   import java.util.List;
   import java.util.ArrayList;
   import java.io.File;
+  import java.io.IOException;
 
   import org.elastos.carrier.*;
   import org.elastos.carrier.exceptions.CarrierException;
   import org.elastos.carrier.session.Manager;
 
-  public class PluginCarrierHandler extends AbstractCarrierHandler implements ManagerHandler , org.elastos.carrier.filetransfer.ManagerHandler {
+  public class PluginCarrierHandler extends AbstractCarrierHandler implements ManagerHandler , org.elastos.carrier.filetransfer.ManagerHandler,
+		  FriendMessageOutbox.Listener {
 	  private static String TAG = "PluginCarrierHandler";
 
 	  public Carrier mCarrier;
 	  public int mCode;
+	  public String mPersistentLocation;
 	  public Manager mSessionManager;
 	  public CallbackContext mCallbackContext = null;
 
 	  private org.elastos.carrier.filetransfer.Manager mFileTransferManager;
+	  private FriendMessageOutbox mOutbox;
+	  private final MessageFragmenter mFragmenter = new MessageFragmenter();
+	  // Frames each friend understands, kept across runs so probes are not repeated.
+	  private final PeerCapabilities mPeerCaps = new PeerCapabilities();
+	  private final MessageCompressor mCompressor = new MessageCompressor(mPeerCaps);
+	  // Duplicate suppression of received messages, null while off.
+	  private volatile MessageDeduplicator mDedup = null;
+	  // Message history, null unless enabled with the "messageStore" option.
+	  private MessageStore mStore = null;
 
 	  public static int AGENT_READY = 0;
 
@@ -59,6 +71,7 @@
 		  if (!carrierDir.exists()) {
 			  carrierDir.mkdirs();
 		  }
+		  mPersistentLocation = dir;
 
 		  boolean udpEnabled = false;
 		  List<Carrier.Options.BootstrapNode> bootstraps = new ArrayList<>();
@@ -105,6 +118,18 @@
 		  mFileTransferManager = org.elastos.carrier.filetransfer.Manager.getInstance();
 		  Log.i(TAG, "Agent file transfer manager created successfully");
 
+		  if (jsonObject.optBoolean("messageStore", false)) {
+			  try {
+				  mStore = MessageStore.open(MessageStore.getStoreDir(dir));
+			  } catch (IOException e) {
+				  Log.e(TAG, "Message store unavailable: " + e.getMessage());
+			  }
+		  }
+
+		  mPeerCaps.load(PeerCapabilities.getCapsFile(dir));
+		  mOutbox = new FriendMessageOutbox(mCarrier, mCompressor, mPeerCaps, FriendMessageOutbox.getOutboxDir(dir), this);
+		  mOutbox.load();
+
 		  mCode = System.identityHashCode(mCarrier);
 
 		  return mCarrier;
@@ -184,6 +209,12 @@
   //	}
 
 	  public void kill() {
+		  if (mOutbox != null) {
+			  mOutbox.close();
+		  }
+		  if (mStore != null) {
+			  mStore.close();
+		  }
 		  if (mCarrier != null) {
 			  mSessionManager.cleanup();
 			  mFileTransferManager.cleanup();
@@ -199,6 +230,85 @@
 	  	    return mFileTransferManager ;
 	  }
 
+	  public FriendMessageOutbox getOutbox() {
+		  return mOutbox;
+	  }
+
+	  public MessageCompressor getCompressor() {
+		  return mCompressor;
+	  }
+
+	  /**
+	   * Turn compression of outgoing friend messages on or off. Friends that are
+	   * online already are asked right away, the others when they connect.
+	   */
+	  public void setCompression(boolean enabled) throws CarrierException {
+		  mCompressor.setEnabled(enabled);
+		  mPeerCaps.setLocalCaps(PeerCapabilities.CAPS_FRAGMENT | (enabled ? PeerCapabilities.CAPS_DEFLATE : 0));
+		  if (!enabled) {
+			  return;
+		  }
+		  for (FriendInfo friend : mCarrier.getFriends()) {
+			  if (friend.getConnectionStatus() == ConnectionStatus.Connected) {
+				  probeCaps(friend.getUserId());
+			  }
+		  }
+	  }
+
+	  public PeerCapabilities getPeerCaps() {
+		  return mPeerCaps;
+	  }
+
+	  /**
+	   * Ask a friend about compression while it is on. A friend without this
+	   * code sees the probe as a message, once. Fragmentation is asked about
+	   * by the first message that needs it.
+	   */
+	  private void probeCaps(String friendId) {
+		  if (mCompressor.isEnabled()) {
+			  // Also called from onFriendConnection, so never send from the calling thread.
+			  FriendMessageOutbox.post(() -> mPeerCaps.probe(mCarrier, friendId, PeerCapabilities.CAPS_DEFLATE));
+		  }
+	  }
+
+	  public void setDedup(JSONObject config) {
+		  mDedup = MessageDeduplicator.fromConfig(config);
+	  }
+
+	  public MessageStore getMessageStore() {
+		  return mStore;
+	  }
+
+	  /**
+	   * Add a message to the history if the store is enabled. Returns its id, or -1.
+	   */
+	  public long storeMessage(String peer, boolean outbound, boolean isOffline, byte[] data) {
+		  if (mStore == null) {
+			  return -1;
+		  }
+		  int flags = (outbound ? MessageStore.FLAG_OUTBOUND : 0) | (isOffline ? MessageStore.FLAG_OFFLINE : 0);
+		  try {
+			  return mStore.append(peer, flags, data);
+		  } catch (IOException e) {
+			  e.printStackTrace();
+			  return -1;
+		  }
+	  }
+
+	  public JSONObject getMessageStatsJson() throws JSONException {
+		  JSONObject r = new JSONObject();
+		  r.put("reassembly", mFragmenter.getStatsJson());
+		  r.put("compression", mCompressor.getStatsJson());
+		  MessageDeduplicator dedup = mDedup;
+		  if (dedup != null) {
+			  r.put("dedup", dedup.getStatsJson());
+		  }
+		  if (mStore != null) {
+			  r.put("store", mStore.getStatsJson());
+		  }
+		  return r;
+	  }
+
 	  public UserInfo getInfo() throws CarrierException {
 		  return mCarrier.getSelfInfo();
 	  }
@@ -275,6 +385,12 @@
 
 	  @Override
 	  public void onFriendConnection(Carrier carrier, String friendId, ConnectionStatus status) {
+		  if (status == ConnectionStatus.Connected) {
+			  probeCaps(friendId);
+			  if (mOutbox != null) {
+				  mOutbox.onFriendOnline(friendId);
+			  }
+		  }
 		  JSONObject r = new JSONObject();
 		  try {
 			  r.put("name", "onFriendConnection");
@@ -286,6 +402,38 @@
 		  }
 	  }
 
+	  @Override
+	  public void onMessageSent(String to, long messageId, String text, boolean isOffline) {
+		  long storeId = storeMessage(to, true, isOffline, text.getBytes(StandardCharsets.UTF_8));
+		  JSONObject r = new JSONObject();
+		  try {
+			  r.put("name", "onFriendMessageSent");
+			  r.put("to", to);
+			  r.put("messageId", messageId);
+			  r.put("isOffline", isOffline);
+			  if (storeId >= 0) {
+				  r.put("storeId", storeId);
+			  }
+			  sendEvent(r);
+		  } catch (JSONException e) {
+			  e.printStackTrace();
+		  }
+	  }
+
+	  @Override
+	  public void onMessageFailed(String to, long messageId, String reason) {
+		  JSONObject r = new JSONObject();
+		  try {
+			  r.put("name", "onFriendMessageFailed");
+			  r.put("to", to);
+			  r.put("messageId", messageId);
+			  r.put("reason", reason);
+			  sendEvent(r);
+		  } catch (JSONException e) {
+			  e.printStackTrace();
+		  }
+	  }
+
 	  @Override
 	  public void onFriendInfoChanged(Carrier carrier, String friendId, FriendInfo friendInfo) {
 		  JSONObject r = new JSONObject();
@@ -326,6 +474,7 @@
 
 	  @Override
 	  public void onFriendRemoved(Carrier carrier, String friendId) {
+		  mPeerCaps.remove(friendId);
 		  JSONObject r = new JSONObject();
 		  try {
 			  r.put("name", "onFriendRemoved");
@@ -352,6 +501,29 @@
 
 	  @Override
 	  public void onFriendMessage(Carrier carrier, String from, byte[] data, boolean isOffline) {
+		  data = mFragmenter.onFrame(from, data);
+		  if (data == null) {
+			  return;
+		  }
+		  if (PeerCapabilities.isCaps(data)) {
+			  int caps = data[2] & 0xff;
+			  mPeerCaps.onCaps(from, caps);
+			  // The friend knows the frame, so answering a probe is always safe.
+			  if ((caps & PeerCapabilities.CAPS_QUERY) != 0) {
+				  FriendMessageOutbox.post(() -> mPeerCaps.announce(mCarrier, from, false));
+			  }
+			  return;
+		  }
+		  data = mCompressor.decode(data);
+		  if (data == null) {
+			  Log.w(TAG, "Dropped undecodable message from " + from);
+			  return;
+		  }
+		  MessageDeduplicator dedup = mDedup;
+		  if (dedup != null && dedup.isDuplicate(from, data)) {
+			  return;
+		  }
+		  long storeId = storeMessage(from, false, isOffline, data);
 		  JSONObject r = new JSONObject();
 		  String message = new String(data, StandardCharsets.UTF_8);
 		  try {
@@ -359,6 +531,9 @@
 			  r.put("from", from);
 			  r.put("message", message);
 			  r.put("isOffline", isOffline);
+			  if (storeId >= 0) {
+				  r.put("storeId", storeId);
+			  }
 			  sendEvent(r);
 		  } catch (JSONException e) {
 			  e.printStackTrace();
@@ -24,19 +24,51 @@
 
  import org.apache.cordova.CallbackContext;
  import org.apache.cordova.PluginResult;
+ import org.elastos.carrier.exceptions.CarrierException;
  import org.elastos.carrier.filetransfer.FileTransfer;
  import org.elastos.carrier.filetransfer.FileTransferHandler;
  import org.elastos.carrier.filetransfer.FileTransferState;
  import org.json.JSONException;
  import org.json.JSONObject;
 
+ import java.io.File;
+ import java.io.IOException;
  import java.nio.charset.StandardCharsets;
+ import java.util.ArrayDeque;
+ import java.util.Arrays;
+ import java.util.HashMap;
+ import java.util.Map;
+ import java.util.concurrent.ConcurrentHashMap;
 
- public class PluginFileTransferHandler implements FileTransferHandler {
+ public class PluginFileTransferHandler implements FileTransferHandler, FileTransferSender.Listener,
+         FileTransferScheduler.Runner, FileTransferProgress.Listener {
      private static String TAG = "PluginFileTransferHandler";
      private CallbackContext mCallbackContext;
      private int fileTransferId;
      private FileTransfer mFileTransfer ;
+     // Files served natively from a local path, by fileId.
+     private final Map<String, FileTransferSender> mSenders = new ConcurrentHashMap<>();
+     // Files received straight to disk, by fileId.
+     private final Map<String, FileTransferSink> mSinks = new ConcurrentHashMap<>();
+     // Sizes announced by onFileRequest, used to preallocate sinks.
+     private final Map<String, Long> mFileSizes = new ConcurrentHashMap<>();
+     // Where receive journals are kept, null to not journal.
+     private File mJournalDir = null;
+     // Priorities of natively sent files, by fileId.
+     private final Map<String, Integer> mSendPriorities = new ConcurrentHashMap<>();
+     private final FileTransferScheduler mScheduler = new FileTransferScheduler(this);
+     // Digests of files sent or received through JS, by fileId.
+     private final Map<String, TransferDigest> mSendDigests = new ConcurrentHashMap<>();
+     private final Map<String, TransferDigest> mReceiveDigests = new ConcurrentHashMap<>();
+     // Chunk size controllers of files sent natively or through JS, by fileId.
+     private final Map<String, ChunkSizeController> mChunkers = new ConcurrentHashMap<>();
+     private final Map<String, JSONObject> mChunkConfigs = new ConcurrentHashMap<>();
+     // Per file rate limits, under the global limit of all transfers.
+     private final BandwidthShaper mShaper = new BandwidthShaper();
+     // Set in progress mode: rate limited onProgress replaces per chunk events.
+     private volatile FileTransferProgress mProgress = null;
+     private FileTransferRegistry mRegistry = null;
+     private volatile long mLastActivity = System.currentTimeMillis();
 
      PluginFileTransferHandler(CallbackContext callbackContext) {
          this.mCallbackContext = callbackContext;
@@ -58,7 +90,446 @@
          this.mFileTransfer = mFileTransfer;
      }
 
+     void setRegistry(FileTransferRegistry registry) {
+         this.mRegistry = registry;
+     }
+
+     void touch() {
+         mLastActivity = System.currentTimeMillis();
+     }
+
+     long getLastActivity() {
+         return mLastActivity;
+     }
+
+     /**
+      * Whether files are queued or moving, which keeps an idle transfer alive.
+      */
+     boolean isBusy() {
+         return mScheduler.isBusy();
+     }
+
+     /**
+      * Close the native transfer once it left the registry.
+      */
+     void closeFileTransfer() {
+         FileTransfer fileTransfer;
+         synchronized (this) {
+             fileTransfer = mFileTransfer;
+             mFileTransfer = null;
+         }
+         if (fileTransfer != null) {
+             fileTransfer.close();
+         }
+     }
+
+     void sendEvicted(String reason) {
+         JSONObject r = new JSONObject();
+         try {
+             r.put("name", "onEvicted");
+             r.put("reason", reason);
+             sendEvent(r);
+         } catch (JSONException e) {
+             e.printStackTrace();
+         }
+     }
+
+     /**
+      * Answer pull requests for fileId from the file at path instead of asking JS.
+      * When the peer pulls, the send is queued on the scheduler with priority.
+      * Returns false without changes while fileId is being sent.
+      */
+     boolean addFileSource(String fileId, String path, int priority) {
+         synchronized (mSenders) {
+             if (mScheduler.isActive(fileId)) {
+                 return false;
+             }
+             mSendPriorities.put(fileId, priority);
+             FileTransferSender sender = mSenders.put(fileId, new FileTransferSender(fileId, path, getChunker(fileId), mShaper, this));
+             if (sender != null) {
+                 sender.cancel();
+             }
+         }
+         return true;
+     }
+
+     boolean isSending(String fileId) {
+         return mSenders.containsKey(fileId) && mScheduler.isActive(fileId);
+     }
+
+     /**
+      * Use the "chunking" section of a file info for the chunk sizes of fileId.
+      */
+     void setChunkConfig(String fileId, JSONObject config) {
+         mChunkConfigs.put(fileId, config);
+         mChunkers.remove(fileId);
+     }
+
+     private ChunkSizeController getChunker(String fileId) {
+         ChunkSizeController chunker = mChunkers.get(fileId);
+         if (chunker == null) {
+             chunker = ChunkSizeController.fromConfig(mChunkConfigs.get(fileId));
+             ChunkSizeController existing = mChunkers.putIfAbsent(fileId, chunker);
+             if (existing != null) {
+                 chunker = existing;
+             }
+         }
+         return chunker;
+     }
+
+     /**
+      * Limit fileId to bytes per second, 0 for no limit of its own.
+      */
+     void setRateLimit(String fileId, long rate) {
+         mShaper.setFileRate(fileId, rate);
+     }
+
+     /**
+      * Result of a write from JS, called once all chunks were handed to the
+      * transfer or the first one fell short.
+      */
+     interface DataWriteCallback {
+         void onDataWritten(int written);
+
+         void onDataWriteError(String reason);
+     }
+
+     private static class DataWrite {
+         final FileTransfer fileTransfer;
+         final byte[] data;
+         final DataWriteCallback callback;
+         int offset = 0;
+         // Bytes of the next chunk already reserved from the rate limits.
+         int reserved = 0;
+
+         DataWrite(FileTransfer fileTransfer, byte[] data, DataWriteCallback callback) {
+             this.fileTransfer = fileTransfer;
+             this.data = data;
+             this.callback = callback;
+         }
+     }
+
+     // Writes from JS waiting behind the current one, by fileId.
+     private final Map<String, ArrayDeque<DataWrite>> mDataWrites = new HashMap<>();
+
+     /**
+      * Write data from JS for fileId in chunks sized by the file's controller.
+      * A chunk over the rate limits resumes on a shaper thread instead of
+      * holding the caller's thread, and writes of the same file run in the
+      * order they were made. The callback gets the bytes accepted, stopping
+      * at the first short write.
+      */
+     void writeData(FileTransfer fileTransfer, String fileId, byte[] data, DataWriteCallback callback) {
+         DataWrite write = new DataWrite(fileTransfer, data, callback);
+         synchronized (mDataWrites) {
+             ArrayDeque<DataWrite> pending = mDataWrites.get(fileId);
+             if (pending != null) {
+                 pending.add(write);
+                 return;
+             }
+             mDataWrites.put(fileId, new ArrayDeque<DataWrite>());
+         }
+         continueWrite(fileId, write);
+     }
+
+     private void continueWrite(String fileId, DataWrite write) {
+         ChunkSizeController chunker = getChunker(fileId);
+         while (write != null) {
+             String error = null;
+             try {
+                 while (write.offset < write.data.length) {
+                     int length = Math.min(chunker.getChunkSize(), write.data.length - write.offset);
+                     if (write.reserved != length) {
+                         if (write.reserved > 0) {
+                             mShaper.refund(fileId, write.reserved);
+                         }
+                         write.reserved = length;
+                         long wait = mShaper.reserve(fileId, length);
+                         if (wait > 0) {
+                             final DataWrite waiting = write;
+                             BandwidthShaper.resumeAfter(wait, () -> continueWrite(fileId, waiting));
+                             return;
+                         }
+                     }
+                     write.reserved = 0;
+                     byte[] chunk = (write.offset == 0 && length == write.data.length)
+                             ? write.data : Arrays.copyOfRange(write.data, write.offset, write.offset + length);
+                     long started = System.nanoTime();
+                     int written = write.fileTransfer.writeData(fileId, chunk);
+                     chunker.onWrite(length, Math.max(written, 0), System.nanoTime() - started, false);
+                     if (written <= 0) {
+                         break;
+                     }
+                     write.offset += written;
+                     if (written < length) {
+                         break;
+                     }
+                 }
+             } catch (CarrierException e) {
+                 error = String.format("writeFileTransData error (0x%x)", e.getErrorCode());
+             } catch (RuntimeException e) {
+                 // Fail this write only, the ones queued behind it still get their turn.
+                 error = "writeFileTransData error: " + e.getMessage();
+             }
+
+             if (error != null) {
+                 write.callback.onDataWriteError(error);
+             } else {
+                 onDataWritten(fileId, write.data, write.offset);
+                 write.callback.onDataWritten(write.offset);
+             }
+
+             synchronized (mDataWrites) {
+                 ArrayDeque<DataWrite> pending = mDataWrites.get(fileId);
+                 write = (pending != null) ? pending.poll() : null;
+                 if (write == null) {
+                     mDataWrites.remove(fileId);
+                 }
+             }
+         }
+     }
+
+     /**
+      * Queue a pull of fileId into a sink; it starts once the scheduler has a free slot.
+      */
+     void schedulePull(String fileId, JSONObject config, int priority) {
+         mScheduler.submit(new FileTransferScheduler.Job(fileId, FileTransferScheduler.RECEIVE, priority, 0, config));
+     }
+
+     /**
+      * A pull handled by JS starts at offset; its data is hashed on the way through.
+      */
+     void onPull(String fileId, long offset) {
+         TransferDigest digest = TransferDigest.create(offset);
+         if (digest != null) {
+             mReceiveDigests.put(fileId, digest);
+         }
+     }
+
+     /**
+      * Data written by JS for fileId, hashed in order as far as it was accepted.
+      */
+     private void onDataWritten(String fileId, byte[] data, int written) {
+         TransferDigest digest = mSendDigests.get(fileId);
+         if (digest != null && written > 0) {
+             digest.update(digest.getPosition(), data, 0, Math.min(written, data.length));
+         }
+     }
+
+     /**
+      * JS finished sending fileId, report what was sent and its digest.
+      */
+     void onSendFinishCalled(String fileId) {
+         endProgress(fileId);
+         TransferDigest digest = mSendDigests.remove(fileId);
+         if (digest != null) {
+             sendSendFinished(fileId, digest.getPosition(), digest.finish());
+         }
+     }
+
+     /**
+      * Report progress of sinks and native senders at rateHz instead of per
+      * chunk, or go back to per chunk events with a rate of 0. Data moved by
+      * JS is not tracked, its onData events are always sent.
+      */
+     synchronized void setProgressMode(double rateHz) {
+         if (mProgress != null) {
+             mProgress.stop();
+         }
+         mProgress = (rateHz > 0) ? new FileTransferProgress(this, rateHz) : null;
+     }
+
+     /**
+      * Remember the size of a file this side sends, for progress reports.
+      */
+     void onFileAdded(String fileId, long size) {
+         mFileSizes.put(fileId, size);
+     }
+
+     private void updateProgress(String fileId, long transferred, long size) {
+         FileTransferProgress progress = mProgress;
+         if (progress != null) {
+             progress.update(fileId, transferred, size);
+         }
+     }
+
+     private void endProgress(String fileId) {
+         FileTransferProgress progress = mProgress;
+         if (progress != null) {
+             progress.remove(fileId);
+         }
+     }
+
+     void setConcurrency(int concurrency) {
+         mScheduler.setConcurrency(concurrency);
+     }
+
+     /**
+      * Stop sending or receiving fileId locally, whether it is queued or running.
+      */
+     void cancelFile(String fileId) {
+         mScheduler.cancel(fileId);
+         endProgress(fileId);
+         FileTransferSender sender = mSenders.remove(fileId);
+         if (sender != null) {
+             sender.cancel();
+         }
+         FileTransferSink sink = mSinks.remove(fileId);
+         if (sink != null) {
+             sink.close();
+         }
+     }
+
+     JSONObject getStatsJson() throws JSONException {
+         JSONObject r = new JSONObject();
+         r.put("fileTransferId", fileTransferId);
+         r.put("scheduler", mScheduler.getStatsJson());
+         JSONObject chunking = new JSONObject();
+         for (Map.Entry<String, ChunkSizeController> entry : mChunkers.entrySet()) {
+             chunking.put(entry.getKey(), entry.getValue().getStatsJson());
+         }
+         r.put("chunking", chunking);
+         r.put("shaping", mShaper.getStatsJson());
+         return r;
+     }
+
+     @Override
+     public void startJob(FileTransferScheduler.Job job) throws IOException, CarrierException {
+         if (job.direction == FileTransferScheduler.SEND) {
+             FileTransferSender sender;
+             synchronized (mSenders) {
+                 // The source may have been replaced while the job was queued.
+                 sender = mSenders.get(job.fileId);
+                 if (sender == null) {
+                     throw new IOException("No source for " + job.fileId);
+                 }
+                 job.target = sender;
+             }
+             sender.start(mFileTransfer, job.offset);
+         } else {
+             try {
+                 job.offset = addFileSink(job.fileId, job.offset, (JSONObject) job.payload);
+                 job.target = mSinks.get(job.fileId);
+                 mFileTransfer.pullData(job.fileId, job.offset);
+             } catch (IOException e) {
+                 sendReceiveError(job.fileId, "Open sink error: " + e.getMessage());
+                 throw e;
+             } catch (CarrierException e) {
+                 FileTransferSink sink = mSinks.remove(job.fileId);
+                 if (sink != null) {
+                     sink.close();
+                 }
+                 sendReceiveError(job.fileId, String.format("pullFileTransData error (0x%x)", e.getErrorCode()));
+                 throw e;
+             }
+         }
+     }
+
+     @Override
+     public long getTransferred(FileTransferScheduler.Job job) {
+         long position = 0;
+         if (job.target instanceof FileTransferSender) {
+             position = ((FileTransferSender) job.target).getSentBytes();
+         } else if (job.target instanceof FileTransferSink) {
+             position = ((FileTransferSink) job.target).getPosition();
+         }
+         return Math.max(position - job.offset, 0);
+     }
+
+     void setJournalDir(File journalDir) {
+         this.mJournalDir = journalDir;
+     }
+
+     /**
+      * Write data pulled for fileId to a local file instead of handing it to JS.
+      * A pull from offset 0 resumes from the journaled durable offset, which is
+      * returned as the offset to actually pull from.
+      */
+     long addFileSink(String fileId, long offset, JSONObject config) throws IOException {
+         Long announced = mFileSizes.get(fileId);
+         long size = (announced != null) ? announced : -1;
+
+         FileTransferJournal journal = null;
+         if (mJournalDir != null) {
+             journal = FileTransferJournal.open(mJournalDir, fileId, FileTransferSink.getPath(config), size);
+             if (offset == 0) {
+                 offset = journal.getDurableOffset();
+             }
+         }
+
+         FileTransferSink sink;
+         try {
+             sink = FileTransferSink.fromConfig(config, fileId, size, offset, journal);
+         } catch (IOException e) {
+             if (journal != null) {
+                 journal.close();
+             }
+             throw e;
+         }
+         FileTransferSink previous = mSinks.put(fileId, sink);
+         if (previous != null) {
+             previous.close();
+         }
+         return offset;
+     }
+
+     void close() {
+         mScheduler.clear();
+         setProgressMode(0);
+         for (FileTransferSender sender : mSenders.values()) {
+             sender.cancel();
+         }
+         mSenders.clear();
+         for (FileTransferSink sink : mSinks.values()) {
+             sink.close();
+         }
+         mSinks.clear();
+     }
+
+     private void sendProgress(String fileId, long transferred, long size) {
+         JSONObject r = new JSONObject();
+         try {
+             r.put("name", "onProgress");
+             r.put("fileId", fileId);
+             r.put("transferred", transferred);
+             r.put("size", size);
+             sendEvent(r);
+         } catch (JSONException e) {
+             e.printStackTrace();
+         }
+     }
+
+     @Override
+     public void onProgress(String fileId, long transferred, long size, long rate, long averageRate, long eta) {
+         JSONObject r = new JSONObject();
+         try {
+             r.put("name", "onProgress");
+             r.put("fileId", fileId);
+             r.put("transferred", transferred);
+             r.put("size", size);
+             r.put("rate", rate);
+             r.put("averageRate", averageRate);
+             r.put("eta", eta);
+             sendEvent(r);
+         } catch (JSONException e) {
+             e.printStackTrace();
+         }
+     }
+
+     private void sendReceiveError(String fileId, String reason) {
+         JSONObject r = new JSONObject();
+         try {
+             r.put("name", "onReceiveError");
+             r.put("fileId", fileId);
+             r.put("reason", reason);
+             sendEvent(r);
+         } catch (JSONException e) {
+             e.printStackTrace();
+         }
+     }
+
      private void sendEvent(JSONObject info) throws JSONException {
+         touch();
          info.put("fileTransferId", fileTransferId);
          if (mCallbackContext != null) {
              PluginResult result = new PluginResult(PluginResult.Status.OK, info);
@@ -69,6 +540,10 @@
 
      @Override
      public void onStateChanged(FileTransfer filetransfer, FileTransferState state) {
+         boolean terminal = (state == FileTransferState.Closed || state == FileTransferState.Failed);
+         if (terminal) {
+             close();
+         }
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onStateChanged");
@@ -77,16 +552,24 @@
          } catch (JSONException e) {
              e.printStackTrace();
          }
+         if (terminal && mRegistry != null) {
+             mRegistry.onTerminated(this, state == FileTransferState.Failed);
+         }
      }
 
      @Override
      public void onFileRequest(FileTransfer filetransfer, String fileId, String filename, long size) {
+         mFileSizes.put(fileId, size);
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onFileRequest");
              r.put("fileId", fileId);
              r.put("filename", filename);
              r.put("size", size);
+             if (mJournalDir != null) {
+                 // A sink pulled from 0 continues here on its own.
+                 r.put("resumeOffset", FileTransferJournal.getDurableOffset(mJournalDir, fileId, size));
+             }
              sendEvent(r);
          } catch (JSONException e) {
              e.printStackTrace();
@@ -95,11 +578,29 @@
 
      @Override
      public void onPullRequest(FileTransfer filetransfer, String fileId, long offset) {
+         FileTransferSender sender = mSenders.get(fileId);
+         if (sender == null) {
+             TransferDigest digest = TransferDigest.create(offset);
+             if (digest != null) {
+                 mSendDigests.put(fileId, digest);
+             }
+         } else {
+             if (mScheduler.isActive(fileId)) {
+                 // A repeated pull moves the running send to the new offset.
+                 sender.start(filetransfer, offset);
+             } else {
+                 Integer priority = mSendPriorities.get(fileId);
+                 mScheduler.submit(new FileTransferScheduler.Job(fileId, FileTransferScheduler.SEND,
+                         (priority != null) ? priority : 0, offset, sender));
+             }
+         }
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onPullRequest");
              r.put("fileId", fileId);
              r.put("offset", offset);
+             // Tells JS not to answer with writeData, the plugin is sending the file.
+             r.put("handled", sender != null);
              sendEvent(r);
          } catch (JSONException e) {
              e.printStackTrace();
@@ -108,6 +609,32 @@
 
      @Override
      public boolean onData(FileTransfer filetransfer, String fileId, byte[] data) {
+         touch();
+         FileTransferSink sink = mSinks.get(fileId);
+         if (sink != null) {
+             try {
+                 boolean due = sink.write(data);
+                 if (mProgress != null) {
+                     updateProgress(fileId, sink.getPosition(), sink.getSize());
+                 } else if (due) {
+                     sendProgress(fileId, sink.getPosition(), sink.getSize());
+                 }
+                 return true;
+             } catch (IOException e) {
+                 mSinks.remove(fileId);
+                 sink.close();
+                 mScheduler.onFinished(fileId, false);
+                 endProgress(fileId);
+                 sendReceiveError(fileId, "File write error: " + e.getMessage());
+                 return false;
+             }
+         }
+
+         TransferDigest digest = mReceiveDigests.get(fileId);
+         if (digest != null) {
+             digest.update(data);
+         }
+         // Progress mode never applies here, JS owns these bytes and needs them.
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onData");
@@ -122,10 +649,32 @@
 
      @Override
      public void onDataFinished(FileTransfer filetransfer, String fileId) {
+         endProgress(fileId);
+         FileTransferSink sink = mSinks.remove(fileId);
+         if (sink != null) {
+             try {
+                 sink.finish();
+             } catch (IOException e) {
+                 mScheduler.onFinished(fileId, false);
+                 sendReceiveError(fileId, "File write error: " + e.getMessage());
+                 return;
+             }
+             mScheduler.onFinished(fileId, true);
+         }
+         TransferDigest digest = mReceiveDigests.remove(fileId);
+
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onDataFinished");
              r.put("fileId", fileId);
+             if (sink != null) {
+                 r.put("path", sink.getPath());
+                 r.put("size", sink.getPosition());
+                 putDigest(r, sink.getSha256(), sink.getExpectedSha256());
+             } else if (digest != null) {
+                 r.put("size", digest.getPosition());
+                 putDigest(r, digest.finish(), null);
+             }
              sendEvent(r);
          } catch (JSONException e) {
              e.printStackTrace();
@@ -134,6 +683,10 @@
 
      @Override
      public void onPending(FileTransfer filetransfer, String fileId) {
+         FileTransferSender sender = mSenders.get(fileId);
+         if (sender != null) {
+             sender.pause();
+         }
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onPending");
@@ -146,6 +699,10 @@
 
      @Override
      public void onResume(FileTransfer filetransfer, String fileId) {
+         FileTransferSender sender = mSenders.get(fileId);
+         if (sender != null) {
+             sender.resume();
+         }
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onResume");
@@ -158,6 +715,18 @@
 
      @Override
      public void onCancel(FileTransfer filetransfer, String fileId, int status, String reason) {
+         FileTransferSender sender = mSenders.remove(fileId);
+         if (sender != null) {
+             sender.cancel();
+         }
+         FileTransferSink sink = mSinks.remove(fileId);
+         if (sink != null) {
+             sink.close();
+         }
+         mScheduler.cancel(fileId);
+         endProgress(fileId);
+         mSendDigests.remove(fileId);
+         mReceiveDigests.remove(fileId);
          JSONObject r = new JSONObject();
          try {
              r.put("name", "onCancel");
@@ -169,4 +738,56 @@
              e.printStackTrace();
          }
      }
+ 
+     @Override
+     public void onSendProgress(String fileId, long position, long size) {
+         touch();
+         updateProgress(fileId, position, size);
+     }
+
+     @Override
+     public void onSendFinished(String fileId, long size, String sha256) {
+         mScheduler.onFinished(fileId, true);
+         endProgress(fileId);
+         sendSendFinished(fileId, size, sha256);
+     }
+
+     private void sendSendFinished(String fileId, long size, String sha256) {
+         JSONObject r = new JSONObject();
+         try {
+             r.put("name", "onSendFinished");
+             r.put("fileId", fileId);
+             r.put("size", size);
+             putDigest(r, sha256, null);
+             sendEvent(r);
+         } catch (JSONException e) {
+             e.printStackTrace();
+         }
+     }
+
+     /**
+      * Add the digest, and whether it matches the expected one if there is one.
+      * A null digest means some bytes were not seen by the plugin.
+      */
+     private void putDigest(JSONObject r, String sha256, String expected) throws JSONException {
+         r.put("sha256", (sha256 != null) ? sha256 : JSONObject.NULL);
+         if (expected != null) {
+             r.put("verified", expected.equals(sha256));
+         }
+     }
+
+     @Override
+     public void onSendFailed(String fileId, String reason) {
+         mScheduler.onFinished(fileId, false);
+         endProgress(fileId);
+         JSONObject r = new JSONObject();
+         try {
+             r.put("name", "onSendError");
+             r.put("fileId", fileId);
+             r.put("reason", reason);
+             sendEvent(r);
+         } catch (JSONException e) {
+             e.printStackTrace();
+         }
+     }
  }
\ No newline at end of file
@@ -30,14 +30,31 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import java.nio.charset.StandardCharsets;
 
-public class PluginGroupHandler extends AbstractGroupHandler{
+public class PluginGroupHandler extends AbstractGroupHandler implements GroupMessageQueue.Encoder {
     private static String TAG = "PluginGroupHandler";
     private String groupId ;
     Group mGroup ;
     private CallbackContext mCallbackContext;
+    private final MessageCompressor mCompressor;
+    // Groups cannot negotiate, so members only compress once the app says all of them can read it.
+    private volatile boolean mCompress = false;
+    volatile GroupMessageQueue mSendQueue;
 
-    PluginGroupHandler(CallbackContext callbackContext) {
+    PluginGroupHandler(CallbackContext callbackContext, MessageCompressor compressor) {
         this.mCallbackContext = callbackContext ;
+        this.mCompressor = compressor;
+    }
+
+    void setCompression(boolean enabled) {
+        this.mCompress = enabled;
+    }
+
+    /**
+     * The bytes to send for a message, compressed if the group has it on.
+     */
+    @Override
+    public byte[] encodeMessage(byte[] message) {
+        return mCompress ? mCompressor.compress(message) : message;
     }
 
     void setGroupId(String groupId) {
@@ -46,6 +63,13 @@ public class PluginGroupHandler extends AbstractGroupHandler{
 
     void setGroup(Group mGroup) {
         this.mGroup = mGroup;
+        this.mSendQueue = new GroupMessageQueue(mGroup, this);
+    }
+
+    void close() {
+        if (mSendQueue != null) {
+            mSendQueue.close();
+        }
     }
 
     @Override
@@ -61,6 +85,10 @@ public class PluginGroupHandler extends AbstractGroupHandler{
 
     @Override
     public void onGroupMessage(Group group, String from, byte[] message) {
+        message = mCompressor.decode(message);
+        if (message == null) {
+            return;
+        }
         JSONObject r = new JSONObject();
         String messageData = new String(message, StandardCharsets.UTF_8);
         try {
@@ -22,39 +22,111 @@
 
  package org.elastos.trinity.plugins.carrier;
 
-import android.util.Base64;
-
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.PluginResult;
 import org.elastos.carrier.session.*;
 import org.elastos.carrier.exceptions.CarrierException;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class PluginStreamHandler extends AbstractStreamHandler {
+public class PluginStreamHandler extends AbstractStreamHandler
+		implements StreamEventCoalescer.Sink, StreamWriteQueue.Listener {
 	private static String TAG = "PluginStreamHandler";
 
 	public Stream mStream;
 	public int mCode;
 	public CallbackContext mCallbackContext = null;
 
+	// Deliver stream/channel data as raw bytes instead of Base64 inside JSON.
+	private boolean mBinaryEvents = false;
+	// Optional batching of inbound data events, null when disabled.
+	private StreamEventCoalescer mCoalescer = null;
+	// Optional receive flow control for channels, null when disabled.
+	private ChannelFlowController mFlowController = null;
+	// Optional background send queue, null when writes go straight to the stream.
+	private StreamWriteQueue mWriteQueue = null;
+
 	public PluginStreamHandler(CallbackContext callbackContext) {
 		this.mCallbackContext = callbackContext;
 	}
 
-	public static PluginStreamHandler createInstance(Session session, int type, int options, CallbackContext callbackContext) throws CarrierException {
+	/**
+	 * The handler is registered in the table before the stream is added, so that
+	 * state changes fired from addStream already carry the final objId.
+	 */
+	public static PluginStreamHandler createInstance(Session session, int type, int options, JSONObject config,
+													 HandleTable<PluginStreamHandler> streams,
+													 CallbackContext callbackContext) throws CarrierException {
 		PluginStreamHandler handler = new PluginStreamHandler(callbackContext);
-		if (handler != null) {
+		// Configured first, events fired from addStream must already follow the config.
+		handler.configure(config);
+		handler.mCode = streams.add(handler);
+		try {
 			handler.mStream = session.addStream(StreamType.valueOf(type), options, handler);
-			if (handler.mStream != null) {
-				handler.mCode = System.identityHashCode(handler.mStream);
+		} finally {
+			if (handler.mStream == null) {
+				streams.remove(handler.mCode);
 			}
 		}
+		if (handler.mStream == null) {
+			return null;
+		}
+		if (handler.mFlowController != null) {
+			handler.mFlowController.setStream(handler.mStream);
+		}
+		if (handler.mWriteQueue != null) {
+			handler.mWriteQueue.setStream(handler.mStream);
+		}
 		return handler;
 	}
 
+	private void configure(JSONObject config) {
+		if (config == null) {
+			return;
+		}
+		mBinaryEvents = config.optBoolean("binaryEvents", false);
+		mCoalescer = StreamEventCoalescer.fromConfig(config.optJSONObject("coalesce"), this);
+		mFlowController = ChannelFlowController.fromConfig(config.optJSONObject("flowControl"));
+		mWriteQueue = StreamWriteQueue.fromConfig(config.optJSONObject("writeQueue"), this);
+	}
+
+	public StreamWriteQueue getWriteQueue() {
+		return mWriteQueue;
+	}
+
+	public void close() {
+		if (mWriteQueue != null) {
+			mWriteQueue.close();
+		}
+	}
+
+	/**
+	 * Release bytes of a channel's receive queue once JS has consumed them.
+	 */
+	public void acknowledge(int channel, long length) {
+		if (mFlowController != null) {
+			mFlowController.onAcknowledged(channel, length);
+		}
+	}
+
+	public JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("objId", mCode);
+		if (mFlowController != null) {
+			r.put("flowControl", mFlowController.getStatsJson());
+		}
+		if (mWriteQueue != null) {
+			r.put("writeQueue", mWriteQueue.getStatsJson());
+		}
+		return r;
+	}
+
 	public JSONObject getAddressInfoJson(AddressInfo info) throws JSONException {
 		JSONObject r = new JSONObject();
 		r.put("type", info.getCandidateType().value());
@@ -78,7 +150,15 @@ public class PluginStreamHandler extends AbstractStreamHandler {
 	}
 
 	private void sendEvent(JSONObject info) throws JSONException {
+		// Keep buffered data ahead of any later state or channel event.
+		if (mCoalescer != null) {
+			mCoalescer.flush();
+		}
 		info.put("objId", mCode);
+		sendResult(info);
+	}
+
+	private void sendResult(JSONObject info) {
 		if (mCallbackContext != null) {
 			PluginResult result = new PluginResult(PluginResult.Status.OK, info);
 			result.setKeepCallback(true);
@@ -86,8 +166,69 @@ public class PluginStreamHandler extends AbstractStreamHandler {
 		}
 	}
 
+	/**
+	 * Send a data event as a multipart result: a small JSON header followed by the
+	 * payload bytes, which the WebView receives as an ArrayBuffer.
+	 */
+	private void sendBinaryEvent(JSONObject header, byte[] data) throws JSONException {
+		header.put("objId", mCode);
+		if (mCallbackContext != null) {
+			List<PluginResult> parts = new ArrayList<>(2);
+			parts.add(new PluginResult(PluginResult.Status.OK, header));
+			parts.add(new PluginResult(PluginResult.Status.OK, data));
+			PluginResult result = new PluginResult(PluginResult.Status.OK, parts);
+			result.setKeepCallback(true);
+			mCallbackContext.sendPluginResult(result);
+		}
+	}
+
+	@Override
+	public void onBatch(int[] channels, int[] lengths, int count, byte[] data, int size) {
+		JSONObject r = new JSONObject();
+		try {
+			r.put("name", "onDataBatch");
+			JSONArray channelList = new JSONArray();
+			JSONArray lengthList = new JSONArray();
+			for (int i = 0; i < count; i++) {
+				channelList.put(channels[i]);
+				lengthList.put(lengths[i]);
+			}
+			r.put("channels", channelList);
+			r.put("lengths", lengthList);
+			if (mBinaryEvents) {
+				sendBinaryEvent(r, Arrays.copyOf(data, size));
+			} else {
+				JSONArray frames = new JSONArray();
+				for (int i = 0, offset = 0; i < count; offset += lengths[i], i++) {
+					frames.put(PooledBase64.encode(data, offset, lengths[i]));
+				}
+				r.put("data", frames);
+				r.put("objId", mCode);
+				sendResult(r);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void onWritabilityChanged(boolean writable, long queuedBytes) {
+		JSONObject r = new JSONObject();
+		try {
+			r.put("name", "onWritabilityChanged");
+			r.put("writable", writable);
+			r.put("queuedBytes", queuedBytes);
+			sendEvent(r);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
 	@Override
 	public void onStateChanged(Stream stream, StreamState state) {
+		if (state == StreamState.Deactivated || state == StreamState.Closed || state == StreamState.Error) {
+			close();
+		}
 		JSONObject r = new JSONObject();
 		try {
 			r.put("name", "onStateChanged");
@@ -100,10 +241,18 @@ public class PluginStreamHandler extends AbstractStreamHandler {
 
 	@Override
 	public void onStreamData(Stream stream, byte[] data) {
+		if (mCoalescer != null) {
+			mCoalescer.add(-1, data);
+			return;
+		}
 		JSONObject r = new JSONObject();
 		try {
 			r.put("name", "onStreamData");
-			r.put("data", Base64.encodeToString(data, Base64.DEFAULT));
+			if (mBinaryEvents) {
+				sendBinaryEvent(r, data);
+				return;
+			}
+			r.put("data", PooledBase64.encode(data));
 			sendEvent(r);
 		} catch (JSONException e) {
 			e.printStackTrace();
@@ -138,6 +287,9 @@ public class PluginStreamHandler extends AbstractStreamHandler {
 
 	@Override
 	public void onChannelClose(Stream stream, int channel,  CloseReason reason) {
+		if (mFlowController != null) {
+			mFlowController.onChannelClosed(channel);
+		}
 		JSONObject r = new JSONObject();
 		try {
 			r.put("name", "onChannelClose");
@@ -151,11 +303,25 @@ public class PluginStreamHandler extends AbstractStreamHandler {
 
 	@Override
 	public boolean onChannelData(Stream stream, int channel, byte[] data) {
+		if (mFlowController != null) {
+			mFlowController.onDelivered(channel, data.length);
+		}
+		if (mCoalescer != null) {
+			mCoalescer.add(channel, data);
+			return true;
+		}
 		JSONObject r = new JSONObject();
 		try {
 			r.put("name", "onChannelData");
 			r.put("channel", channel);
-			r.put("data", Base64.encodeToString(data, Base64.DEFAULT));
+			if (mBinaryEvents) {
+				sendBinaryEvent(r, data);
+				return true;
+			}
+			r.put("data", PooledBase64.encode(data));
+			if (mFlowController != null) {
+				r.put("size", data.length);
+			}
 			sendEvent(r);
 		} catch (JSONException e) {
 			e.printStackTrace();
@@ -165,6 +331,9 @@ public class PluginStreamHandler extends AbstractStreamHandler {
 
 	@Override
 	public void onChannelPending(Stream stream, int channel) {
+		if (mWriteQueue != null) {
+			mWriteQueue.onChannelPending(channel);
+		}
 		JSONObject r = new JSONObject();
 		try {
 			r.put("name", "onChannelPending");
@@ -177,6 +346,9 @@ public class PluginStreamHandler extends AbstractStreamHandler {
 
 	@Override
 	public void onChannelResume(Stream stream, int channel) {
+		if (mWriteQueue != null) {
+			mWriteQueue.onChannelResume(channel);
+		}
 		JSONObject r = new JSONObject();
 		try {
 			r.put("name", "onChannelResume");
@@ -0,0 +1,173 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base64 for frame payloads crossing the JS bridge, working in pooled scratch
+ * buffers so that only the final String or byte[] is allocated per frame.
+ *
+ * Output matches android.util.Base64 with the DEFAULT flag: 76 character lines,
+ * each terminated by a newline. Decoding skips whitespace like the platform
+ * decoder and rejects anything else outside the alphabet.
+ */
+class PooledBase64 {
+	private static String TAG = "PooledBase64";
+
+	private static final int LINE_LENGTH = 76;
+
+	private static final byte[] ENCODE = {
+		'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P',
+		'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f',
+		'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v',
+		'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/',
+	};
+
+	private static final int SKIP = -2;
+	private static final int INVALID = -1;
+	private static final int[] DECODE = new int[128];
+
+	static {
+		Arrays.fill(DECODE, INVALID);
+		for (int i = 0; i < ENCODE.length; i++) {
+			DECODE[ENCODE[i]] = i;
+		}
+		DECODE['\n'] = SKIP;
+		DECODE['\r'] = SKIP;
+		DECODE['\t'] = SKIP;
+		DECODE[' '] = SKIP;
+	}
+
+	private PooledBase64() {
+	}
+
+	static String encode(byte[] data) {
+		return encode(data, 0, data.length);
+	}
+
+	static String encode(byte[] data, int offset, int length) {
+		if (length == 0) {
+			return "";
+		}
+		int chars = (length + 2) / 3 * 4;
+		int size = chars + (chars + LINE_LENGTH - 1) / LINE_LENGTH;
+
+		BufferPool pool = BufferPool.shared();
+		byte[] out = pool.acquire(size);
+		try {
+			int op = 0;
+			int line = 0;
+			int end = offset + length;
+			int i = offset;
+			for (; i + 2 < end; i += 3) {
+				int v = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+				out[op++] = ENCODE[v >>> 18];
+				out[op++] = ENCODE[(v >>> 12) & 0x3f];
+				out[op++] = ENCODE[(v >>> 6) & 0x3f];
+				out[op++] = ENCODE[v & 0x3f];
+				line += 4;
+				if (line == LINE_LENGTH) {
+					out[op++] = '\n';
+					line = 0;
+				}
+			}
+			if (i < end) {
+				int v = (data[i] & 0xff) << 16 | ((i + 1 < end) ? (data[i + 1] & 0xff) << 8 : 0);
+				out[op++] = ENCODE[v >>> 18];
+				out[op++] = ENCODE[(v >>> 12) & 0x3f];
+				out[op++] = (i + 1 < end) ? ENCODE[(v >>> 6) & 0x3f] : (byte) '=';
+				out[op++] = '=';
+				line += 4;
+			}
+			if (line > 0) {
+				out[op++] = '\n';
+			}
+			return new String(out, 0, op, StandardCharsets.US_ASCII);
+		} finally {
+			pool.release(out);
+		}
+	}
+
+	/**
+	 * Upper bound of the decoded size of a Base64 string.
+	 */
+	static int maxDecodedLength(String encoded) {
+		return encoded.length() / 4 * 3 + 3;
+	}
+
+	/**
+	 * Decode into a caller supplied buffer of at least maxDecodedLength bytes and
+	 * return the number of bytes written.
+	 *
+	 * @throws IllegalArgumentException on characters outside the alphabet.
+	 */
+	static int decode(String encoded, byte[] out) {
+		int op = 0;
+		int bits = 0;
+		int count = 0;
+		int length = encoded.length();
+		for (int i = 0; i < length; i++) {
+			char c = encoded.charAt(i);
+			if (c == '=') {
+				break;
+			}
+			int v = (c < 128) ? DECODE[c] : INVALID;
+			if (v == SKIP) {
+				continue;
+			}
+			if (v == INVALID) {
+				throw new IllegalArgumentException("bad base-64");
+			}
+			bits = (bits << 6) | v;
+			if (++count == 4) {
+				out[op++] = (byte) (bits >> 16);
+				out[op++] = (byte) (bits >> 8);
+				out[op++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if (count == 1) {
+			throw new IllegalArgumentException("bad base-64");
+		} else if (count == 2) {
+			out[op++] = (byte) (bits >> 4);
+		} else if (count == 3) {
+			out[op++] = (byte) (bits >> 10);
+			out[op++] = (byte) (bits >> 2);
+		}
+		return op;
+	}
+
+	static byte[] decode(String encoded) {
+		BufferPool pool = BufferPool.shared();
+		byte[] scratch = pool.acquire(maxDecodedLength(encoded));
+		try {
+			int size = decode(encoded, scratch);
+			return Arrays.copyOf(scratch, size);
+		} finally {
+			pool.release(scratch);
+		}
+	}
+}
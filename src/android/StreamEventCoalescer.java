@@ -0,0 +1,125 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers inbound stream frames and hands them over as one batch when the
+ * time window expires or the size limits are reached. Frame boundaries and
+ * channel ids are kept, a channel of -1 marks plain stream data.
+ */
+class StreamEventCoalescer {
+	private static String TAG = "StreamEventCoalescer";
+
+	private static final int DEFAULT_WINDOW_MS = 10;
+	private static final int DEFAULT_MAX_BYTES = 64 * 1024;
+	private static final int DEFAULT_MAX_FRAMES = 256;
+
+	private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(TAG));
+
+	interface Sink {
+		void onBatch(int[] channels, int[] lengths, int count, byte[] data, int size);
+	}
+
+	private final Sink mSink;
+	private final int mWindowMs;
+	private final int mMaxBytes;
+	private final int mMaxFrames;
+
+	private int[] mChannels;
+	private int[] mLengths;
+	private int mCount = 0;
+	private byte[] mData;
+	private int mSize = 0;
+	private ScheduledFuture<?> mPendingFlush = null;
+
+	private StreamEventCoalescer(Sink sink, int windowMs, int maxBytes, int maxFrames) {
+		this.mSink = sink;
+		this.mWindowMs = windowMs;
+		this.mMaxBytes = maxBytes;
+		this.mMaxFrames = maxFrames;
+		this.mChannels = new int[maxFrames];
+		this.mLengths = new int[maxFrames];
+		this.mData = new byte[Math.min(maxBytes, 4096)];
+	}
+
+	/**
+	 * Without "coalesce" settings every frame is its own event and no coalescer
+	 * is made. A window of 0 flushes on every add, which only batches frames
+	 * that arrive while a flush is running.
+	 */
+	static StreamEventCoalescer fromConfig(JSONObject config, Sink sink) {
+		if (config == null) {
+			return null;
+		}
+		int windowMs = Math.max(config.optInt("windowMs", DEFAULT_WINDOW_MS), 0);
+		int maxBytes = Math.max(config.optInt("maxBytes", DEFAULT_MAX_BYTES), 1);
+		int maxFrames = Math.max(config.optInt("maxFrames", DEFAULT_MAX_FRAMES), 1);
+		return new StreamEventCoalescer(sink, windowMs, maxBytes, maxFrames);
+	}
+
+	synchronized void add(int channel, byte[] data) {
+		ensureCapacity(mSize + data.length);
+		System.arraycopy(data, 0, mData, mSize, data.length);
+		mSize += data.length;
+		mChannels[mCount] = channel;
+		mLengths[mCount] = data.length;
+		mCount++;
+
+		if (mSize >= mMaxBytes || mCount >= mMaxFrames || mWindowMs == 0) {
+			flush();
+		} else if (mPendingFlush == null) {
+			mPendingFlush = sTimer.schedule(this::flush, mWindowMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Deliver everything buffered so far. Sending happens under the lock so that
+	 * a timer flush and an inline flush can never reorder batches.
+	 */
+	synchronized void flush() {
+		if (mPendingFlush != null) {
+			mPendingFlush.cancel(false);
+			mPendingFlush = null;
+		}
+		if (mCount == 0) {
+			return;
+		}
+		mSink.onBatch(mChannels, mLengths, mCount, mData, mSize);
+		mCount = 0;
+		mSize = 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > mData.length) {
+			mData = Arrays.copyOf(mData, Math.max(capacity, mData.length * 2));
+		}
+	}
+}
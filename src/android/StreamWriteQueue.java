@@ -0,0 +1,321 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.apache.cordova.CallbackContext;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.session.Stream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded outbound queue of a stream, drained in the background.
+ *
+ * Writes are accepted until the queue holds maxBytes and complete their JS
+ * callback once every byte has been handed to the stream. Short writes are
+ * continued from where they stopped and failed writes are retried after a
+ * delay. Writability changes are reported around the high and low watermarks
+ * so that producers can back off without polling.
+ */
+class StreamWriteQueue {
+	private static String TAG = "StreamWriteQueue";
+
+	private static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+	private static final int DEFAULT_MAX_RETRIES = 8;
+	private static final int DEFAULT_RETRY_DELAY_MS = 20;
+
+	private static final ScheduledExecutorService sWriter = Executors.newScheduledThreadPool(2, new DaemonThreadFactory(TAG));
+
+	interface Listener {
+		void onWritabilityChanged(boolean writable, long queuedBytes);
+	}
+
+	private static class Entry {
+		final int channel;
+		final byte[] data;
+		final CallbackContext callbackContext;
+		int offset = 0;
+		// Cleared under the queue lock once the entry left mEntries.
+		boolean queued = true;
+
+		Entry(int channel, byte[] data, CallbackContext callbackContext) {
+			this.channel = channel;
+			this.data = data;
+			this.callbackContext = callbackContext;
+		}
+	}
+
+	private volatile Stream mStream = null;
+	private final Listener mListener;
+	private final long mMaxBytes;
+	private final long mHighWatermark;
+	private final long mLowWatermark;
+	private final int mMaxRetries;
+	private final int mRetryDelayMs;
+
+	private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+	private final Set<Integer> mPendedChannels = new HashSet<>();
+	private long mQueuedBytes = 0;
+	private boolean mWritable = true;
+	private boolean mDraining = false;
+	private boolean mClosed = false;
+	private int mAttempts = 0;
+
+	private long mRetryCount = 0;
+	private long mFailureCount = 0;
+
+	private StreamWriteQueue(Listener listener, long maxBytes, long highWatermark,
+							 long lowWatermark, int maxRetries, int retryDelayMs) {
+		this.mListener = listener;
+		this.mMaxBytes = maxBytes;
+		this.mHighWatermark = highWatermark;
+		this.mLowWatermark = lowWatermark;
+		this.mMaxRetries = maxRetries;
+		this.mRetryDelayMs = retryDelayMs;
+	}
+
+	/**
+	 * Writes go straight to the stream unless it was added with "writeQueue"
+	 * settings. The watermarks default to half and a quarter of maxBytes.
+	 */
+	static StreamWriteQueue fromConfig(JSONObject config, Listener listener) {
+		if (config == null) {
+			return null;
+		}
+		long maxBytes = Math.max(config.optLong("maxBytes", DEFAULT_MAX_BYTES), 1);
+		long high = Math.min(Math.max(config.optLong("highWatermark", maxBytes / 2), 1), maxBytes);
+		long low = Math.min(Math.max(config.optLong("lowWatermark", maxBytes / 4), 0), high);
+		int maxRetries = Math.max(config.optInt("maxRetries", DEFAULT_MAX_RETRIES), 0);
+		int retryDelayMs = Math.max(config.optInt("retryDelayMs", DEFAULT_RETRY_DELAY_MS), 1);
+		return new StreamWriteQueue(listener, maxBytes, high, low, maxRetries, retryDelayMs);
+	}
+
+	/**
+	 * JS only learns the stream's objId once it was added, so no write can be
+	 * queued before this is called.
+	 */
+	void setStream(Stream stream) {
+		mStream = stream;
+	}
+
+	/**
+	 * Queue data for the stream (channel -1) or a channel. The callback is completed
+	 * when the data has been written, or right away if the queue is full or closed.
+	 */
+	void write(int channel, byte[] data, CallbackContext callbackContext) {
+		boolean blocked = false;
+		long queuedBytes;
+		synchronized (this) {
+			if (mClosed) {
+				callbackContext.error("Stream closed!");
+				return;
+			}
+			if (mQueuedBytes + data.length > mMaxBytes) {
+				callbackContext.error("Write queue full!");
+				return;
+			}
+			mEntries.add(new Entry(channel, data, callbackContext));
+			mQueuedBytes += data.length;
+			queuedBytes = mQueuedBytes;
+			if (mWritable && mQueuedBytes >= mHighWatermark) {
+				mWritable = false;
+				blocked = true;
+			}
+		}
+		if (blocked) {
+			mListener.onWritabilityChanged(false, queuedBytes);
+		}
+		scheduleDrain(0);
+	}
+
+	synchronized void onChannelPending(int channel) {
+		mPendedChannels.add(channel);
+	}
+
+	void onChannelResume(int channel) {
+		synchronized (this) {
+			mPendedChannels.remove(channel);
+		}
+		scheduleDrain(0);
+	}
+
+	/**
+	 * Fail everything still queued, used when the stream goes away.
+	 */
+	void close() {
+		ArrayDeque<Entry> dropped;
+		synchronized (this) {
+			mClosed = true;
+			dropped = new ArrayDeque<>(mEntries);
+			for (Entry entry : dropped) {
+				entry.queued = false;
+			}
+			mEntries.clear();
+			mQueuedBytes = 0;
+		}
+		for (Entry entry : dropped) {
+			entry.callbackContext.error("Stream closed!");
+		}
+	}
+
+	private void scheduleDrain(long delayMs) {
+		synchronized (this) {
+			if (mDraining || mClosed) {
+				return;
+			}
+			mDraining = true;
+		}
+		sWriter.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void drain() {
+		while (true) {
+			Entry entry;
+			synchronized (this) {
+				entry = mClosed ? null : nextEntry();
+				if (entry == null) {
+					mDraining = false;
+					return;
+				}
+			}
+
+			int written = 0;
+			CarrierException error = null;
+			try {
+				byte[] chunk = (entry.offset == 0) ? entry.data : Arrays.copyOfRange(entry.data, entry.offset, entry.data.length);
+				written = (entry.channel < 0) ? mStream.writeData(chunk) : mStream.writeData(entry.channel, chunk);
+			} catch (CarrierException e) {
+				error = e;
+			}
+
+			if (written > 0) {
+				mAttempts = 0;
+				entry.offset += written;
+				onProgress(entry, written);
+				continue;
+			}
+
+			if (mAttempts < mMaxRetries) {
+				mAttempts++;
+				synchronized (this) {
+					mRetryCount++;
+				}
+				// Still draining, so new writes do not cut the back-off short.
+				sWriter.schedule(this::drain, (long) mRetryDelayMs * mAttempts, TimeUnit.MILLISECONDS);
+				return;
+			}
+
+			mAttempts = 0;
+			String reason = (error != null) ? String.format("streamWrite error (0x%x)", error.getErrorCode()) : "streamWrite failed!";
+			synchronized (this) {
+				mFailureCount++;
+			}
+			complete(entry, reason);
+		}
+	}
+
+	/**
+	 * The oldest entry that may be written now. Entries of pended channels are
+	 * passed over, so one pended channel does not hold up the others, and all
+	 * entries of a channel keep their order.
+	 */
+	private Entry nextEntry() {
+		for (Entry entry : mEntries) {
+			if (entry.channel < 0 || !mPendedChannels.contains(entry.channel)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void onProgress(Entry entry, int written) {
+		synchronized (this) {
+			// Bytes of an entry dropped by close were already taken off.
+			if (entry.queued) {
+				mQueuedBytes -= written;
+			}
+		}
+		if (entry.offset >= entry.data.length) {
+			complete(entry, null);
+		}
+	}
+
+	private void complete(Entry entry, String error) {
+		boolean writable = false;
+		long queuedBytes;
+		synchronized (this) {
+			// Gone already if the queue was closed meanwhile.
+			if (!entry.queued) {
+				return;
+			}
+			entry.queued = false;
+			mEntries.remove(entry);
+			if (error != null) {
+				mQueuedBytes -= entry.data.length - entry.offset;
+			}
+			queuedBytes = mQueuedBytes;
+			if (!mWritable && mQueuedBytes <= mLowWatermark) {
+				mWritable = true;
+				writable = true;
+			}
+		}
+
+		if (error != null) {
+			entry.callbackContext.error(error);
+		} else {
+			JSONObject r = new JSONObject();
+			try {
+				if (entry.channel >= 0) {
+					r.put("channel", entry.channel);
+				}
+				r.put("written", entry.data.length);
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+			entry.callbackContext.success(r);
+		}
+
+		if (writable) {
+			mListener.onWritabilityChanged(true, queuedBytes);
+		}
+	}
+
+	synchronized JSONObject getStatsJson() throws JSONException {
+		JSONObject r = new JSONObject();
+		r.put("maxBytes", mMaxBytes);
+		r.put("queuedBytes", mQueuedBytes);
+		r.put("queuedWrites", mEntries.size());
+		r.put("writable", mWritable);
+		r.put("retryCount", mRetryCount);
+		r.put("failureCount", mFailureCount);
+		return r;
+	}
+}
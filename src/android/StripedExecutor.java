@@ -0,0 +1,110 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a shared executor while keeping FIFO order per key.
+ *
+ * Keys are hashed onto a fixed number of stripes. Each stripe is a serial
+ * queue that occupies at most one thread of the backing executor, so tasks
+ * for the same object never overlap or reorder, while tasks on different
+ * stripes run in parallel.
+ */
+class StripedExecutor {
+	private static String TAG = "StripedExecutor";
+
+	private static class Stripe implements Runnable {
+		private final Executor mExecutor;
+		private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger mDepth = new AtomicInteger(0);
+		private final AtomicLong mCompleted = new AtomicLong(0);
+
+		Stripe(Executor executor) {
+			this.mExecutor = executor;
+		}
+
+		void submit(Runnable task) {
+			mTasks.add(task);
+			// Only the submitter that finds the stripe idle starts a drain.
+			if (mDepth.getAndIncrement() == 0) {
+				mExecutor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			do {
+				Runnable task = mTasks.poll();
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				mCompleted.incrementAndGet();
+			} while (mDepth.decrementAndGet() > 0);
+		}
+	}
+
+	private final Stripe[] mStripes;
+
+	StripedExecutor(Executor executor, int stripes) {
+		mStripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			mStripes[i] = new Stripe(executor);
+		}
+	}
+
+	void execute(Object key, Runnable task) {
+		int hash = (key != null) ? key.hashCode() : 0;
+		hash ^= (hash >>> 16);
+		mStripes[(hash & 0x7fffffff) % mStripes.length].submit(task);
+	}
+
+	JSONObject getStatsJson() throws JSONException {
+		JSONArray depths = new JSONArray();
+		JSONArray completed = new JSONArray();
+		int pending = 0;
+		for (Stripe stripe : mStripes) {
+			int depth = stripe.mDepth.get();
+			depths.put(depth);
+			completed.put(stripe.mCompleted.get());
+			pending += depth;
+		}
+
+		JSONObject r = new JSONObject();
+		r.put("stripes", mStripes.length);
+		r.put("pending", pending);
+		r.put("depths", depths);
+		r.put("completed", completed);
+		return r;
+	}
+}
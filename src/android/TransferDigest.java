@@ -0,0 +1,146 @@
+ /*
+  * Copyright (c) 2018 Elastos Foundation
+  *
+  * Permission is hereby granted, free of charge, to any person obtaining a copy
+  * of this software and associated documentation files (the "Software"), to deal
+  * in the Software without restriction, including without limitation the rights
+  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+  * copies of the Software, and to permit persons to whom the Software is
+  * furnished to do so, subject to the following conditions:
+  *
+  * The above copyright notice and this permission notice shall be included in all
+  * copies or substantial portions of the Software.
+  *
+  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  * SOFTWARE.
+  */
+
+ package org.elastos.trinity.plugins.carrier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Incremental SHA-256 of a file as its bytes pass through a transfer.
+ *
+ * Bytes must arrive in order from offset 0. Data that does not continue at
+ * the hashed position makes the digest unavailable, unless the caller can
+ * catch up from the file itself, as senders and sinks do after a resume.
+ */
+class TransferDigest {
+	private static String TAG = "TransferDigest";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int CATCH_UP_CHUNK = 64 * 1024;
+
+	private final MessageDigest mDigest;
+	private long mPosition = 0;
+	private boolean mValid;
+
+	private TransferDigest(MessageDigest digest, long offset) {
+		this.mDigest = digest;
+		this.mPosition = offset;
+		this.mValid = (offset == 0);
+	}
+
+	/**
+	 * Create a digest for bytes starting at offset. Returns null if SHA-256 is
+	 * not available on this device.
+	 */
+	static TransferDigest create(long offset) {
+		try {
+			return new TransferDigest(MessageDigest.getInstance("SHA-256"), offset);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	synchronized long getPosition() {
+		return mPosition;
+	}
+
+	synchronized void update(long offset, byte[] data, int start, int length) {
+		if (offset != mPosition) {
+			mValid = false;
+		}
+		if (mValid) {
+			mDigest.update(data, start, length);
+		}
+		mPosition = offset + length;
+	}
+
+	synchronized void update(byte[] data) {
+		update(mPosition, data, 0, data.length);
+	}
+
+	/**
+	 * Continue at target without the bytes before it, which makes the digest
+	 * unavailable.
+	 */
+	synchronized void skipTo(long target) {
+		mValid = false;
+		mPosition = target;
+	}
+
+	/**
+	 * Bring the digest to target by hashing what is already in the file, so a
+	 * transfer resumed at target still gets a whole-file digest. Only the
+	 * missing range is read. A file that ends before target leaves the digest
+	 * unavailable.
+	 */
+	synchronized void catchUp(FileChannel channel, long target) throws IOException {
+		if (target < mPosition || !mValid) {
+			mDigest.reset();
+			mPosition = 0;
+			mValid = true;
+		}
+		if (target == mPosition) {
+			return;
+		}
+
+		BufferPool pool = BufferPool.shared();
+		byte[] buffer = pool.acquire(CATCH_UP_CHUNK);
+		try {
+			while (mPosition < target) {
+				int length = (int) Math.min(buffer.length, target - mPosition);
+				ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+				while (bytes.hasRemaining()) {
+					if (channel.read(bytes, mPosition + bytes.position()) < 0) {
+						skipTo(target);
+						return;
+					}
+				}
+				mDigest.update(buffer, 0, length);
+				mPosition += length;
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * The hex digest of everything hashed so far, or null if bytes were missed.
+	 * The digest is reset afterwards.
+	 */
+	synchronized String finish() {
+		if (!mValid) {
+			return null;
+		}
+		byte[] hash = mDigest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HEX[hash[i] & 0x0f];
+		}
+		return new String(hex);
+	}
+}
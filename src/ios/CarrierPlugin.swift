@@ -88,6 +88,15 @@ class CarrierPlugin : TrinityPlugin {
         self.commandDelegate.send(result, callbackId: command.callbackId)
     }
 
+    // ArrayBuffer arguments arrive as Data, older callers still pass Base64 strings.
+    func getBinaryArg(_ command: CDVInvokedUrlCommand, _ index: Int) -> Data {
+        if let data = command.arguments[index] as? Data {
+            return data
+        }
+        let data = command.arguments[index] as? String ?? ""
+        return Data(base64Encoded: data, options: Data.Base64DecodingOptions.ignoreUnknownCharacters) ?? Data()
+    }
+
     @objc func test(_ command: CDVInvokedUrlCommand) {
 
     }
@@ -802,8 +811,7 @@ class CarrierPlugin : TrinityPlugin {
 
     @objc func streamWrite(_ command: CDVInvokedUrlCommand) {
         let id = command.arguments[0] as? Int ?? 0
-        let data = command.arguments[1] as? String ?? ""
-        let rawData = Data(base64Encoded: data, options: Data.Base64DecodingOptions.ignoreUnknownCharacters)!
+        let rawData = getBinaryArg(command, 1)
 
         if let streamHandler: PluginStreamHandler = mStreamDict[id] {
             do {
@@ -868,8 +876,7 @@ class CarrierPlugin : TrinityPlugin {
     @objc func writeChannel(_ command: CDVInvokedUrlCommand) {
         let id = command.arguments[0] as? Int ?? 0
         let channel = command.arguments[1] as? Int ?? 0
-        let data = command.arguments[2] as? String ?? ""
-        let rawData = Data(base64Encoded: data, options: Data.Base64DecodingOptions.ignoreUnknownCharacters)!
+        let rawData = getBinaryArg(command, 2)
 
         if let streamHandler: PluginStreamHandler = mStreamDict[id] {
             do {
@@ -1474,4 +1481,104 @@ class CarrierPlugin : TrinityPlugin {
             self.error(command, retAsString: "Id invalid!");
         }
     }
+
+    // The actions below are only implemented on Android so far. Cordova never
+    // calls back for a missing method, so answer them with an error instead of
+    // leaving the JS call pending.
+    func notSupported(_ command: CDVInvokedUrlCommand) {
+        self.error(command, retAsString: command.methodName + " is not supported on iOS");
+    }
+
+    // Stream
+    @objc func writeChannelBatch(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func ackChannelData(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func getStreamStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    // File transfer
+    @objc func getFileTransStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func scheduleFileTransPull(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setFileTransConcurrency(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setFileTransProgressMode(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setFileTransRateLimit(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setFileTransGlobalRateLimit(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setFileTransIdleTimeout(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func getFileTransRegistryStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    // Friend message
+    @objc func queueFriendMessage(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func getFriendMessageOutboxStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func getFriendMessageStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func queryFriendMessages(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setFriendMessageDedup(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setFriendMessageCompression(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    // Group
+    @objc func setGroupCompression(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func setGroupMessageQueue(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func getGroupMessageQueueStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    // Plugin
+    @objc func getDispatcherStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
+
+    @objc func getBufferPoolStats(_ command: CDVInvokedUrlCommand) {
+        notSupported(command)
+    }
 }
@@ -37,6 +37,8 @@ const CARRIER_CB_NAMES = [
     "onFriendAdded",
     "onFriendRemoved",
     "onFriendMessage",
+    "onFriendMessageSent",
+    "onFriendMessageFailed",
     "onFriendInviteRequest",
     "onSessionRequest",
     "onGroupInvite",
@@ -60,6 +62,11 @@ const FILE_TRANSFER_CB_NAMES = [
     "onPending",
     "onResume",
     "onCancel",
+    "onSendFinished",
+    "onSendError",
+    "onProgress",
+    "onReceiveError",
+    "onEvicted",
 ];
 
 const STREAM_CB_NAMES = [
@@ -71,6 +78,7 @@ const STREAM_CB_NAMES = [
     "onChannelData",
     "onChannelPending",
     "onChannelResume",
+    "onWritabilityChanged",
 ];
 
 const CARRIER = 1;
@@ -80,6 +88,40 @@ const FRIEND_INVITE = 4;
 const GROUP = 5 ;
 const FILE_TRANSFER = 6 ;
 
+/**
+ * The bridge marshals ArrayBuffer arguments natively, but not typed array views,
+ * so views are narrowed to the exact bytes they cover. Strings are passed through
+ * untouched and keep their Base64 meaning.
+ */
+function toBridgeData(data: CarrierPlugin.BinaryData): string | ArrayBuffer {
+    if (data instanceof ArrayBuffer || typeof data === 'string') {
+        return data;
+    }
+    if (ArrayBuffer.isView(data)) {
+        var buffer = data.buffer as ArrayBuffer;
+        if (data.byteOffset == 0 && data.byteLength == buffer.byteLength) {
+            return buffer;
+        }
+        return buffer.slice(data.byteOffset, data.byteOffset + data.byteLength);
+    }
+    return data;
+}
+
+function toBytes(data: CarrierPlugin.BinaryData): Uint8Array {
+    if (typeof data === 'string') {
+        var raw = atob(data);
+        var bytes = new Uint8Array(raw.length);
+        for (var i = 0; i < raw.length; i++) {
+            bytes[i] = raw.charCodeAt(i);
+        }
+        return bytes;
+    }
+    if (data instanceof ArrayBuffer) {
+        return new Uint8Array(data);
+    }
+    return new Uint8Array(data.buffer, data.byteOffset, data.byteLength);
+}
+
 class StreamImpl implements CarrierPlugin.Stream {
     objId = null;
     carrierManager = null;
@@ -88,6 +130,11 @@ class StreamImpl implements CarrierPlugin.Stream {
     carrier: CarrierPlugin.Carrier = null;
     session: CarrierPlugin.Session = null;
     type: CarrierPlugin.StreamType = null;
+    config: CarrierPlugin.StreamConfig = null;
+
+    // Consumed channel bytes not yet acknowledged to the native flow controller.
+    pendingAcks = {};
+    ackScheduled = false;
 
     callbacks: CarrierPlugin.StreamCallbacks = {
         onStateChanged: null,
@@ -98,8 +145,12 @@ class StreamImpl implements CarrierPlugin.Stream {
         onChannelData: null,
         onChannelPending: null,
         onChannelResume: null,
+        onWritabilityChanged: null,
     };
 
+    /** False while the native write queue is above its high watermark. */
+    writable = true;
+
     on(name: string, callback: Function): Boolean {
         if (typeof callback != 'function') {
             return false;
@@ -122,12 +173,93 @@ class StreamImpl implements CarrierPlugin.Stream {
         exec(_onSuccess, onError, 'CarrierPlugin', name, args);
     }
 
+    dispatch(event) {
+        if (event.name == "onDataBatch") {
+            this.dispatchBatch(event);
+            return;
+        }
+        if (event.name == "onWritabilityChanged") {
+            this.writable = event.writable;
+        }
+        if (this.callbacks[event.name]) {
+            this.callbacks[event.name](event);
+        }
+        if (event.name == "onChannelData") {
+            this.consumed(event.channel, (event.data instanceof Uint8Array) ? event.data.byteLength : event.size);
+        }
+    }
+
+    /**
+     * Record that a data callback returned. Only streams configured with
+     * flowControl.autoAck acknowledge here, once per turn of the event loop;
+     * the others wait for the app to call ackChannelData once it has really
+     * processed the data.
+     */
+    consumed(channel: Number, length: Number) {
+        if (!this.config || !this.config.flowControl || !this.config.flowControl.autoAck) {
+            return;
+        }
+        this.pendingAcks[channel as any] = (this.pendingAcks[channel as any] || 0) + length;
+        if (!this.ackScheduled) {
+            this.ackScheduled = true;
+            setTimeout(() => {
+                var acks = this.pendingAcks;
+                this.pendingAcks = {};
+                this.ackScheduled = false;
+                var channels = [];
+                var lengths = [];
+                for (var c in acks) {
+                    channels.push(Number(c));
+                    lengths.push(acks[c]);
+                }
+                exec(null, null, 'CarrierPlugin', 'ackChannelData', [this.objId, channels, lengths]);
+            }, 0);
+        }
+    }
+
+    ackChannelData(channel: Number, length: Number, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "ackChannelData", [this.objId, [channel], [length]]);
+    }
+
+    getStats(onSuccess: (stats: CarrierPlugin.StreamStats) => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "getStreamStats", [this.objId]);
+    }
+
+    /**
+     * Replay a coalesced batch as the individual data events it was built from.
+     * In binary mode the payload is one Uint8Array split by the frame lengths,
+     * otherwise each frame carries its own Base64 string.
+     */
+    dispatchBatch(batch) {
+        var offset = 0;
+        for (var i = 0; i < batch.channels.length; i++) {
+            var channel = batch.channels[i];
+            var length = batch.lengths[i];
+            var event: any = {
+                name: channel < 0 ? "onStreamData" : "onChannelData",
+                objId: batch.objId,
+                stream: this,
+                data: (batch.data instanceof Uint8Array) ? batch.data.subarray(offset, offset + length) : batch.data[i]
+            };
+            if (channel >= 0) {
+                event.channel = channel;
+            }
+            offset += length;
+            if (this.callbacks[event.name]) {
+                this.callbacks[event.name](event);
+            }
+            if (channel >= 0) {
+                this.consumed(channel, length);
+            }
+        }
+    }
+
     getTransportInfo(onSuccess: (transportInfo: CarrierPlugin.TransportInfo) => void, onError?: (err: string) => void) {
         this.process(onSuccess, onError, "getTransportInfo", [this.objId]);
     }
 
-    write(data: string, onSuccess: (bytesSent: Number) => void, onError?: (err: string) => void) {
-        this.process(onSuccess, onError, "streamWrite", [this.objId, data]);
+    write(data: CarrierPlugin.BinaryData, onSuccess: (bytesSent: Number) => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "streamWrite", [this.objId, toBridgeData(data)]);
     }
 
     openChannel(cookie: string, onSuccess: (channelId: Number) => void, onError?: (err: string) => void) {
@@ -138,8 +270,30 @@ class StreamImpl implements CarrierPlugin.Stream {
         this.process(onSuccess, onError, "closeChannel", [this.objId, channel]);
     }
 
-    writeChannel(channel: Number, data: string, onSuccess: (bytesSent: Number) => void, onError?: (err: string) => void) {
-        this.process(onSuccess, onError, "writeChannel", [this.objId, channel, data]);
+    writeChannel(channel: Number, data: CarrierPlugin.BinaryData, onSuccess: (bytesSent: Number) => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "writeChannel", [this.objId, channel, toBridgeData(data)]);
+    }
+
+    writeChannelBatch(frames: CarrierPlugin.ChannelFrame[], onSuccess: (result: CarrierPlugin.ChannelBatchResult) => void, onError?: (err: string | CarrierPlugin.ChannelBatchError) => void) {
+        var channels = [];
+        var lengths = [];
+        var parts = [];
+        var total = 0;
+        for (var i = 0; i < frames.length; i++) {
+            var bytes = toBytes(frames[i].data);
+            channels.push(frames[i].channel);
+            lengths.push(bytes.byteLength);
+            parts.push(bytes);
+            total += bytes.byteLength;
+        }
+
+        var payload = new Uint8Array(total);
+        var offset = 0;
+        for (var i = 0; i < parts.length; i++) {
+            payload.set(parts[i], offset);
+            offset += parts[i].byteLength;
+        }
+        this.process(onSuccess, onError, "writeChannelBatch", [this.objId, channels, lengths, payload.buffer]);
     }
 
     pendChannel(channel: Number, onSuccess: () => void, onError?: (err: string) => void) {
@@ -205,11 +359,12 @@ class SessionImpl implements CarrierPlugin.Session {
         this.process(onSuccess, onError, "sessionStart", [this.objId, sdp]);
     }
 
-    addStream(type: CarrierPlugin.StreamType, options: Number, callbacks: CarrierPlugin.StreamCallbacks, onSuccess: (stream: CarrierPlugin.Stream) => void, onError?: (err: string) => void) {
+    addStream(type: CarrierPlugin.StreamType, options: Number, callbacks: CarrierPlugin.StreamCallbacks, onSuccess: (stream: CarrierPlugin.Stream) => void, onError?: (err: string) => void, config?: CarrierPlugin.StreamConfig) {
         var stream = new StreamImpl();
         var me = this;
         var _onSuccess = function (ret) {
             stream.type = type;
+            stream.config = config || null;
             stream.objId = ret.objId;
             stream.id = ret.id;
             stream.carrierManager = me.carrierManager;
@@ -228,7 +383,7 @@ class SessionImpl implements CarrierPlugin.Session {
             }
         }
 
-        exec(_onSuccess, onError, 'CarrierPlugin', 'addStream', [this.objId, type, options]);
+        exec(_onSuccess, onError, 'CarrierPlugin', 'addStream', [this.objId, type, options, config || null]);
     }
 
     removeStream(stream: StreamImpl, onSuccess: (stream: CarrierPlugin.Stream) => void, onError?: (err: string) => void) {
@@ -281,6 +436,8 @@ class CarrierImpl implements CarrierPlugin.Carrier {
         onFriendAdded: null,
         onFriendRemoved: null,
         onFriendMessage: null,
+        onFriendMessageSent: null,
+        onFriendMessageFailed: null,
         onFriendInviteRequest: null,
         onSessionRequest: null,
         onGroupInvite: null,
@@ -383,6 +540,33 @@ class CarrierImpl implements CarrierPlugin.Carrier {
         this.process(onSuccess, onError, "sendFriendMessage", [this.objId, to, message]);
     }
 
+    queueFriendMessage(to: string, message: string, onSuccess?: (messageId: number) => void, onError?: (err: string) => void) {
+        var _onSuccess = function (ret) {
+            if (onSuccess) onSuccess(ret.messageId);
+        };
+        this.process(_onSuccess, onError, "queueFriendMessage", [this.objId, to, message]);
+    }
+
+    getOutboxStats(onSuccess: (stats: CarrierPlugin.OutboxStats) => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "getFriendMessageOutboxStats", [this.objId]);
+    }
+
+    getMessageStats(onSuccess: (stats: CarrierPlugin.MessageStats) => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "getFriendMessageStats", [this.objId]);
+    }
+
+    queryMessages(peer: string, options: CarrierPlugin.MessageQuery, onSuccess: (page: CarrierPlugin.MessagePage) => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "queryFriendMessages", [this.objId, peer, options]);
+    }
+
+    setMessageDedup(config: CarrierPlugin.MessageDedupConfig, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "setFriendMessageDedup", [this.objId, config]);
+    }
+
+    setMessageCompression(enabled: Boolean, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "setFriendMessageCompression", [this.objId, enabled]);
+    }
+
     inviteFriend(to: string, data: string, handler: CarrierPlugin.OnFriendInviteResponse, onSuccess: () => void, onError?: (err: string) => void) {
         var handlerId = 0;
            if (typeof handler == "function") {
@@ -458,6 +642,7 @@ class CarrierImpl implements CarrierPlugin.Carrier {
         var _onSuccess = function(ret){
             var fileTransfer = new FileTransferImpl();
             fileTransfer.fileTransferId = ret.fileTransferId;
+            fileTransfer.carrierManager = me.carrierManager;
             me.carrierManager.fileTransfers[fileTransfer.fileTransferId] = fileTransfer;
 
             if (typeof (callbacks) != "undefined" && callbacks != null) {
@@ -524,6 +709,18 @@ class GroupImpl implements CarrierPlugin.Group {
         this.process(onSuccess, onError, "sendGroupMessage", [this.groupId,message]);
     }
 
+    setCompression(enabled: Boolean, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "setGroupCompression", [this.groupId, enabled]);
+    }
+
+    setSendQueue(config: CarrierPlugin.GroupSendQueueConfig, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "setGroupMessageQueue", [this.groupId, config]);
+    }
+
+    getSendQueueStats(onSuccess: (stats: CarrierPlugin.GroupSendQueueStats) => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "getGroupMessageQueueStats", [this.groupId]);
+    }
+
     getTitle(onSuccess: (groupTitle: string) => void, onError?: (err: string) => void) {
         var _onSuccess = function(ret){
             var title = ret.groupTitle;
@@ -559,6 +756,7 @@ class GroupImpl implements CarrierPlugin.Group {
 
 class FileTransferImpl implements CarrierPlugin.FileTransfer {
     fileTransferId = null;
+    carrierManager = null;
 
     callbacks = {
         onStateChanged: null,
@@ -568,7 +766,12 @@ class FileTransferImpl implements CarrierPlugin.FileTransfer {
         onDataFinished: null,
         onPending: null,
         onResume: null,
-        onCancel: null
+        onCancel: null,
+        onSendFinished: null,
+        onSendError: null,
+        onProgress: null,
+        onReceiveError: null,
+        onEvicted: null
     }
 
     process(onSuccess, onError, name, args) {
@@ -582,7 +785,12 @@ class FileTransferImpl implements CarrierPlugin.FileTransfer {
     }
 
     close(onSuccess?: () => void, onError?: (err: string) => void) {
-        this.process(onSuccess, onError, "closeFileTrans", [this.fileTransferId]);
+        var me = this;
+        var _onSuccess = function () {
+            if (me.carrierManager) delete me.carrierManager.fileTransfers[me.fileTransferId];
+            if (onSuccess) onSuccess();
+        };
+        this.process(_onSuccess, onError, "closeFileTrans", [this.fileTransferId]);
     }
 
     getFileId(filename: string, onSuccess?: (fileId: string) => void, onError?: (err: string) => void) {
@@ -614,8 +822,8 @@ class FileTransferImpl implements CarrierPlugin.FileTransfer {
         this.process(onSuccess, onError, "addFileTransFile", [this.fileTransferId,fileInfo]);
     }
 
-    pullData(fileId: string, offset: number & { __opaque__: "Int"; }, onSuccess?: () => void, onError?: (err: string) => void) {
-        this.process(onSuccess, onError, "pullFileTransData", [this.fileTransferId,fileId,offset]);
+    pullData(fileId: string, offset: number & { __opaque__: "Int"; }, onSuccess?: () => void, onError?: (err: string) => void, sink?: CarrierPlugin.FileTransferSink) {
+        this.process(onSuccess, onError, "pullFileTransData", [this.fileTransferId,fileId,offset,sink || null]);
     }
 
     writeData(fileId: string, data: string, onSuccess?: () => void, onError?: (err: string) => void) {
@@ -637,6 +845,26 @@ class FileTransferImpl implements CarrierPlugin.FileTransfer {
     resumeTransfer(fileId: string, onSuccess?: () => void, onError?: (err: string) => void) {
         this.process(onSuccess, onError, "resumeFileTrans", [this.fileTransferId , fileId]);
     }
+
+    schedulePull(fileId: string, sink: CarrierPlugin.FileTransferSink, priority?: number, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "scheduleFileTransPull", [this.fileTransferId, fileId, sink, priority || 0]);
+    }
+
+    setConcurrency(concurrency: number, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "setFileTransConcurrency", [this.fileTransferId, concurrency]);
+    }
+
+    setProgressMode(rate: number, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "setFileTransProgressMode", [this.fileTransferId, rate]);
+    }
+
+    setRateLimit(fileId: string, bytesPerSecond: number, onSuccess?: () => void, onError?: (err: string) => void) {
+        this.process(onSuccess, onError, "setFileTransRateLimit", [this.fileTransferId, fileId, bytesPerSecond]);
+    }
+
+    getStats(onSuccess: (stats: CarrierPlugin.FileTransferStats) => void, onError?: (err: string) => void) {
+        exec(onSuccess, onError, 'CarrierPlugin', 'getFileTransStats', [this.fileTransferId]);
+    }
 }
 
 class CarrierManagerImpl implements CarrierPlugin.CarrierManager {
@@ -712,6 +940,26 @@ class CarrierManagerImpl implements CarrierPlugin.CarrierManager {
         exec(onSuccess, onError, 'CarrierPlugin', 'getIdFromAddress', [address]);
     }
 
+    getDispatcherStats(onSuccess: (stats: CarrierPlugin.DispatcherStats) => void, onError?: (err: string) => void) {
+        exec(onSuccess, onError, 'CarrierPlugin', 'getDispatcherStats', []);
+    }
+
+    getBufferPoolStats(onSuccess: (stats: CarrierPlugin.BufferPoolStats) => void, onError?: (err: string) => void) {
+        exec(onSuccess, onError, 'CarrierPlugin', 'getBufferPoolStats', []);
+    }
+
+    setFileTransferRateLimit(bytesPerSecond: number, onSuccess?: () => void, onError?: (err: string) => void) {
+        exec(onSuccess, onError, 'CarrierPlugin', 'setFileTransGlobalRateLimit', [bytesPerSecond]);
+    }
+
+    setFileTransferIdleTimeout(timeoutMs: number, onSuccess?: () => void, onError?: (err: string) => void) {
+        exec(onSuccess, onError, 'CarrierPlugin', 'setFileTransIdleTimeout', [timeoutMs]);
+    }
+
+    getFileTransferRegistryStats(onSuccess: (stats: CarrierPlugin.FileTransferRegistryStats) => void, onError?: (err: string) => void) {
+        exec(onSuccess, onError, 'CarrierPlugin', 'getFileTransRegistryStats', []);
+    }
+
     createObject(callbacks: CarrierPlugin.CarrierCallbacks, options: any, onSuccess: (carrier: CarrierPlugin.Carrier) => void, onError?: (err: string) => void) {
         this.setListener(CARRIER, (event) => {
             event.carrier = this.carriers[event.id];
@@ -726,11 +974,14 @@ class CarrierManagerImpl implements CarrierPlugin.CarrierManager {
             }
         });
 
-        this.setListener(STREAM, function(event) {
-            event.stream = this.streams[event.id];
-            event.id = null;
-            if (event.stream && event.stream.callbacks[event.name]) {
-                event.stream.callbacks[event.name](event);
+        this.setListener(STREAM, (event, payload?: ArrayBuffer) => {
+            // Binary events arrive as a header plus the raw payload.
+            if (payload) {
+                event.data = new Uint8Array(payload);
+            }
+            event.stream = this.streams[event.objId];
+            if (event.stream) {
+                event.stream.dispatch(event);
             }
         });
 
@@ -769,6 +1020,9 @@ class CarrierManagerImpl implements CarrierPlugin.CarrierManager {
                 if (fileTransfer.callbacks[event.name]) {
                     fileTransfer.callbacks[event.name](event);
                 }
+                if (event.name == "onEvicted") {
+                    delete this.fileTransfers[event.fileTransferId];
+                }
             } else {
                 alert(event.name);
             }
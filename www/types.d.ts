@@ -86,6 +86,8 @@ declare namespace CarrierPlugin {
         persistentLocation: string;
         /** BootstrapNode Array. */
         bootstraps: BootstrapNode[];
+        /** Keep a native history of friend messages for queryMessages. Default false. */
+        messageStore?: Boolean;
     }
 
     /**
@@ -141,6 +143,12 @@ declare namespace CarrierPlugin {
         relatedPort?: string;
     }
 
+    /**
+    * Binary payload accepted by stream writes: an ArrayBuffer, any typed array or
+    * DataView over one, or a Base64 encoded string.
+    */
+    type BinaryData = string | ArrayBuffer | ArrayBufferView;
+
     /**
     * The file transfer information.
     */
@@ -149,8 +157,103 @@ declare namespace CarrierPlugin {
         filename: string;
         /** The file ID. */
         fileId: string;
-        /** The file size. */
+        /** The file size. May be left out when path is set. */
         size: Number;
+        /**
+        * Local path of the file to send. When set, the plugin answers pull requests
+        * for this file itself and JS does not need to call writeData. Relative
+        * paths start at the app's data directory; paths outside the app's data
+        * and temp directories are rejected.
+        */
+        path?: string;
+        /** Scheduling priority of a file sent from path, higher first. Default 0. */
+        priority?: Number;
+        /** Bounds of the adaptive chunk size used for writeData of this file. */
+        chunking?: FileTransferChunking;
+    }
+
+    /**
+    * Limits of the chunk size controller. Chunks grow by minSize while writes
+    * are fast and complete, and halve on short, retried or slow writes.
+    */
+    type FileTransferChunking = {
+        /** Smallest chunk in bytes. Default 4 KB. */
+        minSize?: Number;
+        /** Largest chunk in bytes. Default 128 KB. */
+        maxSize?: Number;
+        /** First chunk in bytes. Default 16 KB. */
+        initialSize?: Number;
+        /** Writes slower than this shrink the chunk. Default 50. */
+        targetLatencyMs?: Number;
+    }
+
+    /**
+    * Counters of a file transfer.
+    */
+    type FileTransferStats = {
+        /** The file transfer id. */
+        fileTransferId: Number;
+        scheduler: {
+            /** Files allowed in flight at once. */
+            concurrency: Number;
+            /** Files moving data now. */
+            active: {fileId: string, direction: string, priority: Number, transferred: Number}[];
+            /** fileIds waiting for a free slot, next first. */
+            queued: string[];
+            completed: Number;
+            failed: Number;
+            cancelled: Number;
+            /** Bytes moved by all files. */
+            bytes: Number;
+            /** Bytes per second over the time any file was in flight. */
+            throughput: Number;
+        };
+        /** Chunk size controllers, by fileId. */
+        chunking: {[fileId: string]: {
+            /** The chunk size in use now. */
+            chunkSize: Number,
+            minSize: Number,
+            maxSize: Number,
+            /** Smoothed bytes per second of single writes. */
+            throughput: Number,
+            /** Smoothed write latency. */
+            latencyMs: Number,
+            increases: Number,
+            decreases: Number
+        }};
+        shaping: {
+            /** Limit of all transfers in bytes per second, 0 if none. */
+            globalRate: Number;
+            /** Limits of single files in bytes per second, by fileId. */
+            fileRates: {[fileId: string]: Number};
+            /** Time writers of this transfer waited for the limits. */
+            throttledMs: Number;
+        };
+    }
+
+    /**
+    * Destination of a pulled file. Data is written to disk natively and JS only
+    * receives onProgress and onDataFinished events.
+    *
+    * Synced ranges are journaled under the carrier persistent location, so
+    * pulling the same fileId into the same path from offset 0 continues after
+    * the last durable byte of an earlier, interrupted transfer.
+    */
+    type FileTransferSink = {
+        /**
+        * Local path of the destination file. Like FileTransferInfo.path it is
+        * relative to the app's data directory and must stay in its data or
+        * temp directory.
+        */
+        path: string;
+        /** Reserve the announced file size up front. Default false. */
+        preallocate?: Boolean;
+        /** Force data to storage every this many bytes. Default 0, which syncs every 1 MB for the journal. */
+        fsyncBytes?: Number;
+        /** Send an onProgress event every this many bytes. Default 256 KB. */
+        progressBytes?: Number;
+        /** Expected SHA-256 of the whole file, hex. onDataFinished then reports verified. */
+        sha256?: string;
     }
 
     /**
@@ -165,6 +268,119 @@ declare namespace CarrierPlugin {
         remoteAddr: AddressInfo;
     }
 
+    /**
+    * One frame of a channel batch write.
+    */
+    type ChannelFrame = {
+        /** The channel ID to write to. */
+        channel: Number;
+        /** The frame payload. */
+        data: BinaryData;
+    }
+
+    /**
+    * The result of a channel batch write.
+    */
+    type ChannelBatchResult = {
+        /** Bytes written for each frame, in order. */
+        written: Number[];
+    }
+
+    /**
+    * The error of a channel batch write that failed at a frame.
+    */
+    type ChannelBatchError = {
+        /** Carrier error code of the failing frame. */
+        code: Number;
+        /** Index of the failing frame. */
+        index: Number;
+        /** Bytes written for each frame before it, in order. */
+        written: Number[];
+    }
+
+    /**
+    * Plugin side settings of a stream, given when the stream is added.
+    */
+    type StreamConfig = {
+        /** Deliver onStreamData/onChannelData payloads as Uint8Array instead of Base64 strings. */
+        binaryEvents?: Boolean;
+        /**
+        * Coalesce inbound data events. Frames are buffered until windowMs expires
+        * or maxBytes/maxFrames is reached, then cross the bridge as one batch and
+        * are replayed to onStreamData/onChannelData frame by frame.
+        */
+        coalesce?: {
+            /** Longest time a frame waits in the buffer, in milliseconds. 0 disables the timer. Default 10. */
+            windowMs?: Number;
+            /** Flush once this many bytes are buffered. Default 65536. */
+            maxBytes?: Number;
+            /** Flush once this many frames are buffered. Default 256. */
+            maxFrames?: Number;
+        };
+        /**
+        * Receive flow control for channels. Bytes delivered to JS count against the
+        * channel until the app acknowledges them with Stream.ackChannelData(); the
+        * remote peer is asked to pend the channel at highWatermark and to resume it
+        * once the backlog drops to lowWatermark.
+        */
+        flowControl?: {
+            /** Backlog in bytes at which the channel is pended. Default 262144. */
+            highWatermark?: Number;
+            /** Backlog in bytes at which a pended channel is resumed. Default 65536. */
+            lowWatermark?: Number;
+            /**
+            * Acknowledge as soon as each data callback returns. Only suits apps that
+            * are done with the data by then, otherwise the backlog just measures the
+            * bridge. Default false.
+            */
+            autoAck?: Boolean;
+        };
+        /**
+        * Queue writes natively and send them in the background. write() and
+        * writeChannel() then complete once all bytes are sent, short writes are
+        * continued and failed writes retried. Writes that would exceed maxBytes
+        * fail right away.
+        */
+        writeQueue?: {
+            /** Capacity of the queue in bytes. Default 1048576. */
+            maxBytes?: Number;
+            /** Queued bytes at which the stream reports not writable. Default maxBytes / 2. */
+            highWatermark?: Number;
+            /** Queued bytes at which the stream reports writable again. Default maxBytes / 4. */
+            lowWatermark?: Number;
+            /** Retries of a failed write before it is reported as an error. Default 8. */
+            maxRetries?: Number;
+            /** Base delay between retries in milliseconds, growing linearly. Default 20. */
+            retryDelayMs?: Number;
+        };
+    }
+
+    /**
+    * Runtime statistics of a stream.
+    */
+    type StreamStats = {
+        /** Receive flow control counters, present when flow control is enabled. */
+        flowControl?: {
+            highWatermark: Number;
+            lowWatermark: Number;
+            /** Times any channel of the stream was pended. */
+            pendCount: Number;
+            /** Times any channel of the stream was resumed. */
+            resumeCount: Number;
+            /** Per channel backlog and counters, keyed by channel ID. */
+            channels: { [channel: string]: { queuedBytes: Number, pended: Boolean, pendCount: Number, resumeCount: Number } };
+        };
+        /** Write queue state, present when the write queue is enabled. */
+        writeQueue?: {
+            maxBytes: Number;
+            queuedBytes: Number;
+            queuedWrites: Number;
+            writable: Boolean;
+            retryCount: Number;
+            failureCount: Number;
+        };
+    }
+
     /**
     * The Stream callbacks.
     */
@@ -188,9 +404,9 @@ declare namespace CarrierPlugin {
         * @callback onStreamData
         *
         * @param stream      The carrier stream instance
-        * @param data        The received packet data.
+        * @param data        The received packet data, a Uint8Array in binary event mode.
         */
-        onStreamData?(stream: Stream, data: string);
+        onStreamData?(stream: Stream, data: string | Uint8Array);
 
         /**
         * The callback function to be called when new multiplexing channel request to open.
@@ -231,9 +447,9 @@ declare namespace CarrierPlugin {
         *
         * @param stream      The carrier stream instance
         * @param channel     The current channel ID.
-        * @param data        The received packet data.
+        * @param data        The received packet data, a Uint8Array in binary event mode.
         */
-        onChannelData?(stream: Stream, channel: Number, data: string);
+        onChannelData?(stream: Stream, channel: Number, data: string | Uint8Array);
 
         /**
         * The callback function to be called when remote peer asks to pend data sending.
@@ -254,6 +470,19 @@ declare namespace CarrierPlugin {
         * @param channel     The current channel ID.
         */
         onChannelResume?(stream: Stream, channel: Number);
+
+        /**
+        * The callback function to be called when the stream's write queue crosses its
+        * high watermark (not writable) or drains back to its low watermark (writable).
+        * Only reported for streams added with a writeQueue config.
+        *
+        * @callback onWritabilityChanged
+        *
+        * @param stream      The carrier stream instance
+        * @param writable    Whether producers should keep writing.
+        * @param queuedBytes Bytes waiting in the write queue.
+        */
+        onWritabilityChanged?(stream: Stream, writable: Boolean, queuedBytes: Number);
     }
 
     /**
@@ -271,6 +500,9 @@ declare namespace CarrierPlugin {
 
         callbacks: StreamCallbacks;
 
+        /** @property writable False while the write queue is above its high watermark. **/
+        writable: Boolean;
+
         /**
         * Get transport info of carrier stream.
         * @param onSuccess  The function to call when success, the param is a TransportInfo object
@@ -284,9 +516,9 @@ declare namespace CarrierPlugin {
         *
         * @param onSuccess  The function to call when success, the param is a Number: Bytes of data sent.
         * @param onError    The function to call when error, the param is a string. Or set to null.
-        * @param data       The data to send.
+        * @param data       The data to send, raw bytes or a Base64 encoded string.
         */
-        write(data: string, onSuccess:(bytesSent: Number)=>void, onError?:(err: string)=>void);
+        write(data: BinaryData, onSuccess:(bytesSent: Number)=>void, onError?:(err: string)=>void);
 
         /**
         * Open a new channel on multiplexing stream.
@@ -315,9 +547,40 @@ declare namespace CarrierPlugin {
         * @param onSuccess  The function to call when success, the param is a Number: Bytes of data sent.
         * @param onError    The function to call when error, the param is a string. Or set to null.
         * @param channel    The current channel ID.
-        * @param data       The data to send.
+        * @param data       The data to send, raw bytes or a Base64 encoded string.
+        */
+        writeChannel(channel: Number, data: BinaryData, onSuccess:(bytesSent: Number)=>void, onError?:(err: string)=>void);
+
+        /**
+        * Send several frames to the remote peer in one call, in order.
+        * Writing stops at the first frame that fails, onError then gets a
+        * ChannelBatchError with the frame and what was written before it.
+        *
+        * @param onSuccess  The function to call when done, the param is a ChannelBatchResult.
+        * @param onError    The function to call when error, the param is a ChannelBatchError, or a string
+        *                   if the batch was rejected before writing. Or set to null.
+        * @param frames     The frames to send, each with its channel ID and payload.
+        */
+        writeChannelBatch(frames: ChannelFrame[], onSuccess:(result: ChannelBatchResult)=>void, onError?:(err: string | ChannelBatchError)=>void);
+
+        /**
+        * Acknowledge consumed channel data to the receive flow control.
+        * Needed with flowControl unless the stream was added with flowControl.autoAck.
+        *
+        * @param onSuccess  The function to call when success.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        * @param channel    The channel ID.
+        * @param length     Number of bytes consumed.
+        */
+        ackChannelData(channel: Number, length: Number, onSuccess?:()=>void, onError?:(err: string)=>void);
+
+        /**
+        * Get runtime statistics of the stream, such as flow control counters.
+        *
+        * @param onSuccess  The function to call when success, the param is a StreamStats object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
         */
-        writeChannel(channel: Number, data: string, onSuccess:(bytesSent: Number)=>void, onError?:(err: string)=>void);
+        getStats(onSuccess:(stats: StreamStats)=>void, onError?:(err: string)=>void);
 
         /**
         * Request remote peer to pend channel data sending.
@@ -424,8 +687,9 @@ declare namespace CarrierPlugin {
         * @param type       The stream type defined in StreamType
         * @param options    The stream mode options. Options are constructed by a bitwise-inclusive OR of flags
         * @param callbacks  The stream callbacks.
+        * @param [config]   Plugin side stream settings, such as binary event delivery.
         */
-        addStream(type: StreamType, options: Number, callbacks: StreamCallbacks, onSuccess:(stream: Stream)=>void, onError?:(err: string)=>void);
+        addStream(type: StreamType, options: Number, callbacks: StreamCallbacks, onSuccess:(stream: Stream)=>void, onError?:(err: string)=>void, config?: StreamConfig);
 
         /**
         * Remove a stream from session.
@@ -584,6 +848,31 @@ declare namespace CarrierPlugin {
         */
         onFriendMessage?(carrier: Carrier, from: string, messate: string, isOffline: Boolean);
 
+        /**
+        * The callback function to process a queued friend message that was sent.
+        *
+        * @callback onFriendMessageSent
+        *
+        * @param carrier    Carrier node instance
+        * @param to         The ID of the friend
+        * @param messageId  The id returned by queueFriendMessage
+        * @param isOffline  Whether the message was sent as offline message
+        */
+        onFriendMessageSent?(carrier: Carrier, to: string, messageId: Number, isOffline: Boolean);
+
+        /**
+        * The callback function to process a queued friend message that was given
+        * up after repeated send errors.
+        *
+        * @callback onFriendMessageFailed
+        *
+        * @param carrier    Carrier node instance
+        * @param to         The ID of the friend
+        * @param messageId  The id returned by queueFriendMessage
+        * @param reason     The last send error
+        */
+        onFriendMessageFailed?(carrier: Carrier, to: string, messageId: Number, reason: string);
+
         /**
         * The callback function to process the friend invite request.
         *
@@ -752,9 +1041,12 @@ declare namespace CarrierPlugin {
 
         /**
         * Send a message to a friend.
-        * The message length may not exceed MAX_APP_MESSAGE_LEN, and message itself
-        * should be text-formatted. Larger messages must be split by application
-        * and sent as separate messages. Other nodes can reassemble the fragments.
+        * The message itself should be text-formatted. Messages longer than one
+        * Carrier message are split natively and reassembled by the receiving
+        * plugin, up to 1 MB; onFriendMessage then reports the whole message once.
+        * Only friends running this plugin's Android code can reassemble. The
+        * first long message to a friend asks it and fails as it always did;
+        * once the friend answered, long messages to it are split.
         *
         * @param onSuccess  The function to call when success.
         * @param onError    The function to call when error, the param is a string. Or set to null.
@@ -763,6 +1055,72 @@ declare namespace CarrierPlugin {
         */
         sendFriendMessage(to: string, message: string, onSuccess:()=>void, onError?:(err: string)=>void);
 
+        /**
+        * Queue a message to a friend and return without waiting for the network.
+        * Queued messages are kept on disk, sent in order in the background and
+        * retried when the friend comes online again, also after a restart.
+        * The outcome is reported by onFriendMessageSent or onFriendMessageFailed.
+        *
+        * @param to         The target ID
+        * @param message    The message content defined by application
+        * @param onSuccess  The function to call when queued, the param is the message id.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        queueFriendMessage(to: string, message: string, onSuccess?:(messageId: Number)=>void, onError?:(err: string)=>void);
+
+        /**
+        * Get counters of the queued friend messages.
+        *
+        * @param onSuccess  The function to call when success, the param is an OutboxStats object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        getOutboxStats(onSuccess:(stats: OutboxStats)=>void, onError?:(err: string)=>void);
+
+        /**
+        * Get counters of the native processing of received friend messages.
+        *
+        * @param onSuccess  The function to call when success, the param is a MessageStats object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        getMessageStats(onSuccess:(stats: MessageStats)=>void, onError?:(err: string)=>void);
+
+        /**
+        * Read one page of the message history with a friend. Needs the
+        * messageStore option. Without a cursor the newest messages are returned.
+        *
+        * @param peer       The ID of the friend
+        * @param options    The cursor and page size.
+        * @param onSuccess  The function to call when success, the param is a MessagePage object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        queryMessages(peer: string, options: MessageQuery, onSuccess:(page: MessagePage)=>void, onError?:(err: string)=>void);
+
+        /**
+        * Turn on suppression of friend messages received more than once, as
+        * offline delivery and resends can cause. Duplicates are dropped natively
+        * and never reach onFriendMessage or the message store.
+        *
+        * @param config     The window and key, or null to turn it off.
+        * @param onSuccess  The function to call when success.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        setMessageDedup(config: MessageDedupConfig, onSuccess?:()=>void, onError?:(err: string)=>void);
+
+        /**
+        * Compress friend messages with deflate. Only friends that announced
+        * support get compressed messages, others still get plain text.
+        * Compressed messages are always decompressed on receipt.
+        *
+        * Support is asked for once per friend and remembered across restarts.
+        * A friend that does not run this plugin's Android code receives that
+        * one probe as an onFriendMessage with a binary message.
+        *
+        * @param enabled    Whether to compress messages sent to friends.
+        * @param onSuccess  The function to call when success.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        setMessageCompression(enabled: Boolean, onSuccess?:()=>void, onError?:(err: string)=>void);
+
         /**
         * Send invite request to a friend.
         * Application can attach the application defined data with in the invite
@@ -934,7 +1292,9 @@ declare namespace CarrierPlugin {
         invite(friendId: string, onSuccess:()=>void, onError?:(err: string)=>void);
 
         /**
-        * Send a message to a group request.
+        * Send a message to a group request. Messages are queued and sent in the
+        * background, see setSendQueue; onSuccess is called once the message
+        * went out, onError if the queue is full or the message expired.
         *
         * @param onSuccess  The function to call when success.
         * @param onError    The function to call when error, the param is a string. Or set to null.
@@ -942,6 +1302,34 @@ declare namespace CarrierPlugin {
         */
         sendMessage(message: string, onSuccess:()=>void, onError?:(err: string)=>void);
 
+        /**
+        * Compress messages sent to the group. Groups cannot negotiate, so only
+        * turn it on when every peer runs a plugin version that understands it.
+        *
+        * @param enabled    Whether to compress messages sent to the group.
+        * @param onSuccess  The function to call when success.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        setCompression(enabled: Boolean, onSuccess?:()=>void, onError?:(err: string)=>void);
+
+        /**
+        * Set the pacing of sendMessage. Sending to a large group is slow, a
+        * rate limit keeps bursts from piling up behind each other.
+        *
+        * @param config     The queue settings, missing fields use the defaults.
+        * @param onSuccess  The function to call when success.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        setSendQueue(config: GroupSendQueueConfig, onSuccess?:()=>void, onError?:(err: string)=>void);
+
+        /**
+        * Get the depth and counters of the send queue.
+        *
+        * @param onSuccess  The function to call when success, the param is a GroupSendQueueStats object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        getSendQueueStats(onSuccess:(stats: GroupSendQueueStats)=>void, onError?:(err: string)=>void);
+
         /**
         * Get group title request.
         *
@@ -1012,6 +1400,9 @@ declare namespace CarrierPlugin {
          * @param fileId         The file identifier.
          * @param filename       The file name.
          * @param size           The total file size.
+         *
+         * The event also carries resumeOffset, the bytes of this file already
+         * received into a sink by an earlier transfer.
          */
         onFileRequest?(fileTransfer: FileTransfer, fileId: string, filename: string, size: Int);
 
@@ -1044,6 +1435,10 @@ declare namespace CarrierPlugin {
          *
          * @param fileTransfer   The fileTransfer instance .
          * @param fileId         The unique identifier of transferring file.
+         *
+         * The event also carries sha256, the hex SHA-256 of the received file when
+         * the plugin saw all of it and null otherwise, e.g. after a ranged pull
+         * into a new file, and verified when a sink gave an expected sha256.
          */
         onDataFinished?(fileTransfer: FileTransfer, fileId: string);
 
@@ -1081,6 +1476,73 @@ declare namespace CarrierPlugin {
          * @param reason         Cancel transfer reason.
          */
         onCancel?(fileTransfer: FileTransfer, fileId: string, status: Int, reason: string);
+
+        /**
+         * An application-defined function that handles the end of a file sent
+         * natively from a local path.
+         *
+         * @callback onSendFinished
+         *
+         * @param fileTransfer   The fileTransfer instance .
+         * @param fileId         The unique identifier of transferring file.
+         * @param size           The number of bytes sent.
+         *
+         * The event also carries sha256, the hex SHA-256 of the sent file. It is
+         * sent as well when JS calls sendFinish after sending with writeData.
+         */
+        onSendFinished?(fileTransfer: FileTransfer, fileId: string, size: Int);
+
+        /**
+         * An application-defined function that handles a failure while sending
+         * a file natively from a local path.
+         *
+         * @callback onSendError
+         *
+         * @param fileTransfer   The fileTransfer instance .
+         * @param fileId         The unique identifier of transferring file.
+         * @param reason         The failure reason.
+         */
+        onSendError?(fileTransfer: FileTransfer, fileId: string, reason: string);
+
+        /**
+         * An application-defined function that handles progress of a file
+         * received into a sink, or of any file in progress mode.
+         *
+         * @callback onProgress
+         *
+         * @param fileTransfer   The fileTransfer instance .
+         * @param fileId         The unique identifier of transferring file.
+         * @param transferred    The bytes of the file moved so far.
+         * @param size           The announced file size, or -1 if unknown.
+         * @param rate           Progress mode only: bytes per second since the last report.
+         * @param averageRate    Progress mode only: smoothed bytes per second.
+         * @param eta            Progress mode only: estimated seconds left, or -1 if unknown.
+         */
+        onProgress?(fileTransfer: FileTransfer, fileId: string, transferred: Int, size: Int, rate?: Int, averageRate?: Int, eta?: Int);
+
+        /**
+         * An application-defined function that handles a failure while writing
+         * a received file into a sink.
+         *
+         * @callback onReceiveError
+         *
+         * @param fileTransfer   The fileTransfer instance .
+         * @param fileId         The unique identifier of transferring file.
+         * @param reason         The failure reason.
+         */
+        onReceiveError?(fileTransfer: FileTransfer, fileId: string, reason: string);
+
+        /**
+         * An application-defined function that handles the removal of a file
+         * transfer by the plugin. The transfer is closed and can not be used
+         * any more.
+         *
+         * @callback onEvicted
+         *
+         * @param fileTransfer   The fileTransfer instance .
+         * @param reason         "closed" or "failed" after a terminal state, "idle" after the idle timeout.
+         */
+        onEvicted?(fileTransfer: FileTransfer, reason: string);
     }
 
     /**
@@ -1151,11 +1613,15 @@ declare namespace CarrierPlugin {
          * @param offset     The offset of file where transfer begins.
          * @param onSuccess  The function to call when success.The param is a string "Success!",
          * @param onError    The function to call when error, the param is a string. Or set to null.
+         * @param [sink]     Write the received data to a local file instead of onData events.
          */
-        pullData(fileId: string, offset: Int, onSuccess?:()=>void, onError?:(err:string)=>void);
+        pullData(fileId: string, offset: Int, onSuccess?:()=>void, onError?:(err:string)=>void, sink?: FileTransferSink);
 
         /**
-         * To transfer file data with a specified fileId.
+         * To transfer file data with a specified fileId. The data is written in
+         * chunks; if the transfer stops taking it, onError tells how many bytes
+         * were written and the rest has to be written again. Under a rate limit
+         * onSuccess is delayed until the last chunk went out.
          *
          * @param onSuccess  The function to call when success.The param is a string "Success!",
          * @param onError    The function to call when error, the param is a string. Or set to null.
@@ -1199,6 +1665,59 @@ declare namespace CarrierPlugin {
          * @param onError    The function to call when error, the param is a string. Or set to null.
          */
         resumeTransfer(fileId: string, onSuccess?:()=>void, onError?:(err:string)=>void);
+
+        /**
+         * Queue a pull of a file into a sink. Queued pulls and files sent from a
+         * local path share the transfer's concurrency limit; higher priorities start first.
+         *
+         * @param fileId     The file identifier.
+         * @param sink       Where to write the received file.
+         * @param [priority] The priority of the file, default 0.
+         * @param onSuccess  The function to call when queued.
+         * @param onError    The function to call when error, the param is a string. Or set to null.
+         */
+        schedulePull(fileId: string, sink: FileTransferSink, priority?: Int, onSuccess?:()=>void, onError?:(err:string)=>void);
+
+        /**
+         * Set how many files of this transfer may move data at once, default 4.
+         *
+         * @param concurrency The number of files in flight.
+         * @param onSuccess   The function to call when success.
+         * @param onError     The function to call when error, the param is a string. Or set to null.
+         */
+        setConcurrency(concurrency: Int, onSuccess?:()=>void, onError?:(err:string)=>void);
+
+        /**
+         * Report progress of files sent from a path or pulled into a sink at a
+         * fixed rate instead of per chunk; onProgress carries the bytes moved,
+         * throughput and ETA. Data moved through writeData and onData is not
+         * tracked and onData is still called. A rate of 0 turns it off.
+         *
+         * @param rate        Reports per second, e.g. 4.
+         * @param onSuccess   The function to call when success.
+         * @param onError     The function to call when error, the param is a string. Or set to null.
+         */
+        setProgressMode(rate: Number, onSuccess?:()=>void, onError?:(err:string)=>void);
+
+        /**
+         * Limit the send rate of one file, whether sent from a path or through
+         * writeData. The limit applies below the global one and can be changed
+         * at any time.
+         *
+         * @param fileId          The file identifier.
+         * @param bytesPerSecond  The limit, 0 to remove it.
+         * @param onSuccess       The function to call when success.
+         * @param onError         The function to call when error, the param is a string. Or set to null.
+         */
+        setRateLimit(fileId: string, bytesPerSecond: Number, onSuccess?:()=>void, onError?:(err:string)=>void);
+
+        /**
+         * Get scheduling and throughput counters of this transfer.
+         *
+         * @param onSuccess  The function to call when success, the param is a FileTransferStats object.
+         * @param onError    The function to call when error, the param is a string. Or set to null.
+         */
+        getStats(onSuccess:(stats: FileTransferStats)=>void, onError?:(err:string)=>void);
     }
 
     /**
@@ -1369,6 +1888,211 @@ declare namespace CarrierPlugin {
         PORT_FORWARDING=16
     }
 
+    /**
+    * Load of the native action dispatcher. Actions are queued on stripes keyed by
+    * the object they target; each stripe runs its actions one at a time, in order.
+    */
+    type DispatcherStats = {
+        /** Number of stripes. */
+        stripes: Number;
+        /** Actions queued or running over all stripes. */
+        pending: Number;
+        /** Actions queued or running, per stripe. */
+        depths: Number[];
+        /** Actions completed, per stripe. */
+        completed: Number[];
+        /** The separate dispatcher of data writes, which may block for long. */
+        blocking?: DispatcherStats;
+    }
+
+    /**
+    * Settings of the group send queue.
+    */
+    type GroupSendQueueConfig = {
+        /** Messages that may wait, further sends fail. Default 256. */
+        maxDepth?: Number;
+        /** Messages sent back to back at most. Default 8. */
+        batchSize?: Number;
+        /** Send rate, 0 for no limit. Default 0. */
+        messagesPerSecond?: Number;
+        /** Fail messages that waited longer than this, 0 to never. Default 0. */
+        ttlMs?: Number;
+    }
+
+    /**
+    * Counters of a group send queue.
+    */
+    type GroupSendQueueStats = {
+        /** Messages waiting to be sent. */
+        depth: Number;
+        queuedBytes: Number;
+        maxDepth: Number;
+        batchSize: Number;
+        messagesPerSecond: Number;
+        ttlMs: Number;
+        sent: Number;
+        batches: Number;
+        /** Messages the group failed to send. */
+        failed: Number;
+        /** Sends refused because the queue was full. */
+        dropped: Number;
+        /** Messages failed after waiting longer than ttlMs. */
+        expired: Number;
+        /** Longest time a sent message waited in the queue. */
+        maxWaitMs: Number;
+    }
+
+    /**
+    * Settings of duplicate suppression. A message is a duplicate if the same
+    * sender sent the same key within the window.
+    */
+    type MessageDedupConfig = {
+        /** How long a message is remembered, at least half of it. Default 10 minutes. */
+        windowMs?: Number;
+        /** Keys remembered per half window, bounds the memory used. Default 8192. */
+        maxEntries?: Number;
+        /** Key JSON payloads on this field, e.g. a message id, instead of the whole payload. */
+        keyField?: string;
+    }
+
+    /**
+    * Cursor of a history query. Pass the id of the last message of a page as
+    * before to page back in time, or as after to page forward.
+    */
+    type MessageQuery = {
+        /** Return messages older than this id, newest first. */
+        before?: Number;
+        /** Return messages newer than this id, oldest first. */
+        after?: Number;
+        /** Messages per page, at most 500. Default 50. */
+        limit?: Number;
+    }
+
+    /**
+    * A message of the native history.
+    */
+    type StoredMessage = {
+        /** The store id, also reported as storeId by onFriendMessage and sends. */
+        id: Number;
+        peer: string;
+        /** True for messages sent to the peer. */
+        outbound: Boolean;
+        isOffline: Boolean;
+        /** Local time in milliseconds when the message was stored. */
+        timestamp: Number;
+        message: string;
+    }
+
+    type MessagePage = {
+        messages: StoredMessage[];
+        /** Whether more messages lie beyond this page. */
+        hasMore: Boolean;
+    }
+
+    /**
+    * Counters of received friend messages.
+    */
+    type MessageStats = {
+        reassembly: {
+            /** Messages with fragments still missing. */
+            pending: Number;
+            pendingBytes: Number;
+            /** Fragments received. */
+            fragments: Number;
+            /** Messages put back together. */
+            reassembled: Number;
+            /** Partial messages dropped after the 60 second timeout. */
+            expired: Number;
+            /** Partial messages or fragments dropped by the memory limits. */
+            dropped: Number;
+        };
+        /** Friend and group message compression. */
+        compression: {
+            enabled: Boolean;
+            /** Friends that announced support, online or not. */
+            capablePeers: Number;
+            compressed: Number;
+            /** Messages sent as they were, too short or not smaller compressed. */
+            skipped: Number;
+            originalBytes: Number;
+            compressedBytes: Number;
+            /** compressedBytes / originalBytes. */
+            ratio: Number;
+            decompressed: Number;
+            /** Received frames that could not be decompressed. */
+            errors: Number;
+        };
+        /** Present while duplicate suppression is on. */
+        dedup?: {
+            windowMs: Number;
+            maxEntries: Number;
+            /** Keys in the current half window. */
+            entries: Number;
+            checked: Number;
+            /** Duplicates dropped. */
+            suppressed: Number;
+        };
+        /** Present with the messageStore option. */
+        store?: {
+            logBytes: Number;
+            /** Messages stored since start. */
+            appended: Number;
+            openIndexes: Number;
+        };
+    }
+
+    /**
+    * Counters of the friend message outbox.
+    */
+    type OutboxStats = {
+        /** Messages waiting to be sent to all friends. */
+        queued: Number;
+        sent: Number;
+        /** Messages given up after repeated send errors. */
+        failed: Number;
+        /** Send attempts that failed and were retried. */
+        retries: Number;
+        /** Friends with queued messages, by userId. */
+        friends: {[userId: string]: {queued: Number, attempts: Number, waiting: Boolean}};
+    }
+
+    /**
+    * Gauges of the live file transfers.
+    */
+    type FileTransferRegistryStats = {
+        /** Transfers open now. */
+        live: Number;
+        opened: Number;
+        /** Transfers closed by JS. */
+        closed: Number;
+        /** Transfers evicted after reaching the closed or failed state. */
+        evictedTerminal: Number;
+        /** Transfers evicted after the idle timeout. */
+        evictedIdle: Number;
+        idleTimeoutMs: Number;
+    }
+
+    /**
+    * Counters of the native buffer pool used for stream frame payloads.
+    * A high miss count at steady throughput means frames keep allocating.
+    */
+    type BufferPoolStats = {
+        /** Buffers served from the pool. */
+        hits: Number;
+        /** Buffers that had to be allocated. */
+        misses: Number;
+        /** Requests above the largest size class, never pooled. */
+        oversize: Number;
+        /** Buffers currently handed out. */
+        outstanding: Number;
+        /** Whether leaks are tracked, true in debuggable builds. */
+        leakDetection: Boolean;
+        /** Buffers collected without being released. */
+        leaks: Number;
+        /** Per size class counters. */
+        classes: {size: Number, idle: Number, hits: Number, misses: Number, drops: Number}[];
+    }
+
     interface CarrierManager {
         /**
         * Get current version of Carrier node.
@@ -1405,6 +2129,52 @@ declare namespace CarrierPlugin {
         */
         getIdFromAddress(address: string, onSuccess:(userId: string)=>void, onError?:(err: string)=>void);
 
+        /**
+        * Get queue depths of the native action dispatcher.
+        *
+        * @param onSuccess  The function to call when success, the param is a DispatcherStats object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        getDispatcherStats(onSuccess:(stats: DispatcherStats)=>void, onError?:(err: string)=>void);
+
+        /**
+        * Get hit and miss counters of the native buffer pool.
+        *
+        * @param onSuccess  The function to call when success, the param is a BufferPoolStats object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        getBufferPoolStats(onSuccess:(stats: BufferPoolStats)=>void, onError?:(err: string)=>void);
+
+        /**
+        * Limit the send rate of all file transfers together, leaving room for
+        * messages and streams. Can be changed at any time.
+        *
+        * @param bytesPerSecond  The limit, 0 to remove it.
+        * @param onSuccess       The function to call when success.
+        * @param onError         The function to call when error, the param is a string. Or set to null.
+        */
+        setFileTransferRateLimit(bytesPerSecond: Number, onSuccess?:()=>void, onError?:(err: string)=>void);
+
+        /**
+        * Set how long a file transfer may go without any activity before it is
+        * closed and evicted, default 0. Transfers with queued or moving files
+        * are never idle, but one still waiting for the peer to connect is.
+        * 0 keeps idle transfers open.
+        *
+        * @param timeoutMs  The idle timeout in milliseconds.
+        * @param onSuccess  The function to call when success.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        setFileTransferIdleTimeout(timeoutMs: Number, onSuccess?:()=>void, onError?:(err: string)=>void);
+
+        /**
+        * Get live and evicted counts of file transfers.
+        *
+        * @param onSuccess  The function to call when success, the param is a FileTransferRegistryStats object.
+        * @param onError    The function to call when error, the param is a string. Or set to null.
+        */
+        getFileTransferRegistryStats(onSuccess:(stats: FileTransferRegistryStats)=>void, onError?:(err: string)=>void);
+
         /**
         * Create a carrier object instance. After initializing the instance,
         * it's ready to start and therefore connect to carrier network.